@@ -0,0 +1,62 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Parsing of raw BLE advertising data (sequence of length, type, data structures) in place,
+ * without copying it to new arrays as {@link android.bluetooth.le.ScanRecord} does.
+ */
+public class AdvertisingData {
+
+    /** AD type of manufacturer specific data */
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * Find next manufacturer specific data structure in raw advertising data.
+     *
+     * @param record raw advertising data, as returned by ScanRecord.getBytes()
+     * @param offset offset at which search starts, 0 or offset of previous structure plus its
+     * {@link #fieldSize(byte[], int)}
+     * @return offset of structure in record or -1 if there is no other
+     */
+    public static int nextManufacturerData(byte[] record, int offset) {
+        if (record == null) {
+            return -1;
+        }
+        while (offset < record.length) {
+            int fieldLength = record[offset] & 0xFF;
+            if (fieldLength == 0 || offset + fieldLength >= record.length) {
+                // end of significant part or malformed field
+                return -1;
+            }
+            // field length covers type and company id at least
+            if ((record[offset + 1] & 0xFF) == TYPE_MANUFACTURER_SPECIFIC_DATA
+                    && fieldLength >= 3) {
+                return offset;
+            }
+            offset += fieldLength + 1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Size of structure, including its length byte.
+     */
+    public static int fieldSize(byte[] record, int offset) {
+        return (record[offset] & 0xFF) + 1;
+    }
+
+    /**
+     * Company identifier of manufacturer specific data structure.
+     */
+    public static int companyId(byte[] record, int offset) {
+        return (record[offset + 2] & 0xFF) | ((record[offset + 3] & 0xFF) << 8);
+    }
+
+    /**
+     * Length of manufacturer data of structure, without company identifier. Data starts at
+     * offset of structure plus 4.
+     */
+    public static int manufacturerDataLength(byte[] record, int offset) {
+        return (record[offset] & 0xFF) - 3;
+    }
+}
@@ -23,6 +23,7 @@ import com.amazonaws.mobileconnectors.iot.AWSIotKeystoreHelper;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttLastWillAndTestament;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
 import com.amazonaws.regions.Region;
@@ -63,6 +64,35 @@ public class AwsIot {
 
     Context context;
 
+    /** Is MQTT client connected */
+    private volatile boolean connected;
+
+    /** Listener for connection state changes */
+    private volatile ConnectionListener connectionListener;
+
+    /**
+     * Notified about MQTT connection state, called on MQTT client thread.
+     */
+    public interface ConnectionListener {
+        void onConnectionChanged(boolean connected);
+    }
+
+    /**
+     * Notified when broker acknowledged or rejected message, called on MQTT client thread.
+     */
+    public interface DeliveryListener {
+        void onDelivered(boolean success);
+    }
+
+    /** Single delivery callback, listener of message is passed as user data */
+    private static final AWSIotMqttMessageDeliveryCallback DELIVERY_CALLBACK =
+            new AWSIotMqttMessageDeliveryCallback() {
+                @Override
+                public void statusChanged(MessageDeliveryStatus status, Object userData) {
+                    ((DeliveryListener) userData).onDelivered(status == MessageDeliveryStatus.Success);
+                }
+            };
+
     public AwsIot(Context context) {
 
         this.context = context;
@@ -100,6 +130,9 @@ public class AwsIot {
                 "Android client lost connection", AWSIotMqttQos.QOS0);
         mqttManager.setMqttLastWillAndTestament(lwt);
 
+        // Readings are kept in journal while offline, so SDK does not have to queue them.
+        mqttManager.setOfflinePublishQueueEnabled(false);
+
         // IoT Client (for creation of certificate if needed)
         mIotAndroidClient = new AWSIotClient(AWSMobileClient.getInstance());
         mIotAndroidClient.setRegion(region);
@@ -140,6 +173,14 @@ public class AwsIot {
                 public void onStatusChanged(final AWSIotMqttClientStatus status,
                                             final Throwable throwable) {
                     Log.d(TAG, "Status = " + String.valueOf(status));
+                    boolean isConnected = status == AWSIotMqttClientStatus.Connected;
+                    if (isConnected != connected) {
+                        connected = isConnected;
+                        ConnectionListener listener = connectionListener;
+                        if (listener != null) {
+                            listener.onConnectionChanged(isConnected);
+                        }
+                    }
                 }
             });
         } catch (final Exception e) {
@@ -185,6 +226,51 @@ public class AwsIot {
         }
     }
 
+    /**
+     * Publish binary payload.
+     *
+     * @param topic MQTT topic
+     * @param data payload
+     * @return true if message was handed over to MQTT client
+     */
+    public boolean publish(String topic, byte[] data) {
+
+        try {
+            mqttManager.publishData(data, topic, AWSIotMqttQos.QOS0);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Publish error.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Publish binary payload with QOS1, broker acknowledges it.
+     *
+     * @param topic MQTT topic
+     * @param data payload
+     * @param listener notified when broker acknowledged the message
+     * @return true if message was handed over to MQTT client
+     */
+    public boolean publish(String topic, byte[] data, DeliveryListener listener) {
+
+        try {
+            mqttManager.publishData(data, topic, AWSIotMqttQos.QOS1, DELIVERY_CALLBACK, listener);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Publish error.", e);
+            return false;
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
+
     public void disconnect() {
         try {
             mqttManager.disconnect();
@@ -0,0 +1,375 @@
+package com.example.androidthings.gattserver;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Publishes sensor readings to AWS IoT in batches. Readings of all sensors are collected into
+ * single JSON array that is sent when it has enough readings, is big enough or its oldest
+ * reading waited long enough, so MQTT and TLS overhead is paid per batch and not per reading.
+ *
+ * Every reading is first appended to {@link ReadingJournal} and batches are read from it.
+ * Records are acknowledged in journal only after broker confirmed the batch, so readings
+ * collected while connection is down are sent after reconnect, in order and at limited
+ * catch up rate.
+ *
+ * Publisher subscribes to {@link EventBus}, it has to be used on thread of its Handler.
+ */
+public class BatchPublisher implements EventBus.Subscriber, AwsIot.ConnectionListener {
+
+    private static final String TAG = BatchPublisher.class.getSimpleName();
+
+    /** Topic of batched readings of all sensors */
+    public static final String BATCH_TOPIC = "gateway/batchPayload";
+
+    /** Topic of batched readings in binary encoding */
+    public static final String BINARY_BATCH_TOPIC = "gateway/batchPayloadBinary";
+
+    /** Batch is JSON array, see {@link PayloadWriter} */
+    public static final int ENCODING_JSON = 0;
+
+    /** Batch is binary, see {@link BinaryPayloadWriter} */
+    public static final int ENCODING_BINARY = 1;
+
+    /** Default maximal number of readings in batch */
+    public static final int DEFAULT_MAX_COUNT = 50;
+
+    /** Default maximal size of batch in bytes, AWS IoT message limit is 128 KB */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+
+    /** Default maximal time reading waits in batch */
+    public static final long DEFAULT_MAX_LATENCY = 5 * 60 * 1000;
+
+    /** Default pause between batches while sending readings collected during outage */
+    public static final long DEFAULT_CATCH_UP_INTERVAL = 2000;
+
+    /** Time to wait for broker to acknowledge batch */
+    private static final long ACK_TIMEOUT = 30000;
+
+    /** Pause before batch that failed is sent again */
+    private static final long RETRY_DELAY = 10000;
+
+    private final AwsIot awsIot;
+
+    private final ReadingJournal journal;
+
+    private final List<LeSensor> sensors;
+
+    private final Handler handler;
+
+    private String topic;
+
+    private int maxCount = DEFAULT_MAX_COUNT;
+
+    private int maxBytes = DEFAULT_MAX_BYTES;
+
+    private long maxLatency = DEFAULT_MAX_LATENCY;
+
+    private long catchUpInterval = DEFAULT_CATCH_UP_INTERVAL;
+
+    /** Suppresses readings that did not change enough, null reports all readings */
+    private ReportingFilter filter;
+
+    /** Batch being encoded */
+    private PayloadEncoder batch;
+
+    /** Reading read from journal */
+    private final Reading reading = new Reading();
+
+    /** Is flush by deadline scheduled */
+    private boolean deadlineScheduled;
+
+    /** Write sequence of journal when it was last forced while offline */
+    private long forcedSeq = -1;
+
+    /** Batch waiting for acknowledge, null if none */
+    private Delivery inFlight;
+
+    /** Number of readings in batch waiting for acknowledge */
+    private int inFlightCount;
+
+    /** Size of batch waiting for acknowledge */
+    private int inFlightBytes;
+
+    /** Time batch waiting for acknowledge was sent, elapsed realtime */
+    private long inFlightSent;
+
+    /* Metrics */
+    private long batchCount;
+    private long readingCount;
+    private long byteCount;
+    private long failedCount;
+
+    private final Runnable deadlineFlusher = new Runnable() {
+        @Override
+        public void run() {
+            deadlineScheduled = false;
+            flush("deadline");
+        }
+    };
+
+    private final Runnable catchUpFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flush("catch up");
+        }
+    };
+
+    private final Runnable ackTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Batch not acknowledged in time.");
+            onDelivered(inFlight, false);
+        }
+    };
+
+    /**
+     * Published batch and listener of its acknowledge, that arrives on MQTT thread. Each batch
+     * has its own, so late acknowledge of batch that timed out does not confirm its retry.
+     */
+    private final class Delivery implements AwsIot.DeliveryListener {
+
+        /** Sequence after last record of batch */
+        private final long end;
+
+        private Delivery(long end) {
+            this.end = end;
+        }
+
+        @Override
+        public void onDelivered(final boolean success) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BatchPublisher.this.onDelivered(Delivery.this, success);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param awsIot AWS IoT client
+     * @param journal journal that keeps readings until they are acknowledged
+     * @param sensors sensors, indexed by sensor index
+     * @param handler handler of thread on which events are received
+     */
+    public BatchPublisher(AwsIot awsIot, ReadingJournal journal, List<LeSensor> sensors,
+                          Handler handler) {
+        this(awsIot, journal, sensors, handler, BATCH_TOPIC);
+    }
+
+    public BatchPublisher(AwsIot awsIot, ReadingJournal journal, List<LeSensor> sensors,
+                          Handler handler, String topic) {
+        this.awsIot = awsIot;
+        this.journal = journal;
+        this.sensors = sensors;
+        this.handler = handler;
+        this.topic = topic;
+        this.batch = new PayloadWriter(sensors, DEFAULT_MAX_BYTES);
+        awsIot.setConnectionListener(this);
+    }
+
+    /**
+     * Select encoding of batches, topic is changed to default topic of the encoding.
+     *
+     * @param encoding {@link #ENCODING_JSON} or {@link #ENCODING_BINARY}
+     */
+    public void setEncoding(int encoding) {
+        switch (encoding) {
+            case ENCODING_JSON:
+                batch = new PayloadWriter(sensors, DEFAULT_MAX_BYTES);
+                topic = BATCH_TOPIC;
+                break;
+            case ENCODING_BINARY:
+                batch = new BinaryPayloadWriter(sensors, DEFAULT_MAX_BYTES);
+                topic = BINARY_BATCH_TOPIC;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown encoding " + encoding);
+        }
+    }
+
+    /**
+     * Set filter of readings, only readings it accepts are journaled and published.
+     *
+     * @param filter filter or null to publish every reading
+     */
+    public void setReportingFilter(ReportingFilter filter) {
+        this.filter = filter;
+    }
+
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+    public void setCatchUpInterval(long catchUpInterval) {
+        this.catchUpInterval = catchUpInterval;
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        if (!event.isReading()) {
+            return;
+        }
+        if (filter != null && !filter.accept(event.getSensorIndex(), event.getTimestamp(),
+                event.getTemp(), event.getHmdt())) {
+            return;
+        }
+        add(event.getSensorIndex(), event.getTimestamp(), event.getTemp(), event.getHmdt());
+    }
+
+    @Override
+    public void onConnectionChanged(boolean connected) {
+        if (connected) {
+            // drain readings collected while offline
+            handler.post(catchUpFlusher);
+        }
+    }
+
+    /**
+     * Add reading, batch is published if it is full. While offline readings are only
+     * journaled, the journal is forced at most once per maximal latency.
+     *
+     * @param sensorIndex index of sensor that was read
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        journal.append(sensorIndex, timestamp, temp, hmdt);
+
+        if (journal.pending() >= maxCount && awsIot.isConnected()) {
+            flush("count");
+        } else if (!deadlineScheduled) {
+            deadlineScheduled = true;
+            handler.postDelayed(deadlineFlusher, maxLatency);
+        }
+    }
+
+    /**
+     * Publish collected readings now.
+     */
+    public void flush() {
+        flush("explicit");
+    }
+
+    private void flush(String reason) {
+        if (inFlight != null || journal.pending() == 0) {
+            // previous batch has to be acknowledged first, records are sent in order
+            return;
+        }
+        if (!awsIot.isConnected()) {
+            // kept in journal, sent after reconnect, forced once per deadline
+            if (journal.getWriteSeq() != forcedSeq) {
+                forcedSeq = journal.getWriteSeq();
+                journal.force();
+            }
+            return;
+        }
+        handler.removeCallbacks(deadlineFlusher);
+        deadlineScheduled = false;
+        handler.removeCallbacks(catchUpFlusher);
+
+        long seq = journal.getAckSeq();
+        long end = journal.getWriteSeq();
+        int count = 0;
+        long oldest = 0;
+        batch.begin();
+        while (seq < end && count < maxCount && batch.size() < maxBytes) {
+            int sensorIndex = journal.read(seq, reading);
+            if (sensorIndex >= 0 && sensorIndex < sensors.size()) {
+                if (count == 0) {
+                    oldest = reading.getTimestamp();
+                }
+                batch.add(sensorIndex, reading.getTimestamp(), reading.getTemp(),
+                        reading.getHmdt());
+                count++;
+            }
+            seq++;
+        }
+        batch.end();
+        // MQTT client needs array of exact size
+        byte[] payload = batch.toByteArray();
+
+        inFlight = new Delivery(seq);
+        inFlightCount = count;
+        inFlightBytes = payload.length;
+        inFlightSent = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Batch flushed (" + reason + "): " + count + " readings, "
+                + payload.length + " bytes, oldest " + (System.currentTimeMillis() - oldest)
+                + " ms, " + (journal.pending() - (seq - journal.getAckSeq())) + " pending.");
+        if (awsIot.publish(topic, payload, inFlight)) {
+            handler.postDelayed(ackTimeout, ACK_TIMEOUT);
+        } else {
+            onDelivered(inFlight, false);
+        }
+    }
+
+    /**
+     * Broker acknowledged or rejected batch. Batch that is no longer in flight, e.g. timed out
+     * and was sent again, is ignored.
+     */
+    private void onDelivered(Delivery delivery, boolean success) {
+        if (delivery == null || delivery != inFlight) {
+            if (delivery != null) {
+                Log.d(TAG, "Late acknowledge of batch ignored.");
+            }
+            return;
+        }
+        handler.removeCallbacks(ackTimeout);
+        if (success) {
+            journal.ack(delivery.end);
+            batchCount++;
+            readingCount += inFlightCount;
+            byteCount += inFlightBytes;
+            Log.d(TAG, "Batch acknowledged in " + (SystemClock.elapsedRealtime() - inFlightSent)
+                    + " ms. Total " + batchCount + " batches, " + readingCount + " readings, "
+                    + byteCount + " bytes, " + failedCount + " failed.");
+        } else {
+            failedCount++;
+        }
+        inFlight = null;
+
+        int pending = journal.pending();
+        if (!success) {
+            handler.postDelayed(catchUpFlusher, RETRY_DELAY);
+        } else if (pending >= maxCount) {
+            // backlog after outage, throttled
+            handler.postDelayed(catchUpFlusher, catchUpInterval);
+        } else if (pending > 0 && !deadlineScheduled) {
+            deadlineScheduled = true;
+            handler.postDelayed(deadlineFlusher, maxLatency);
+        }
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getReadingCount() {
+        return readingCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public int getPendingCount() {
+        return journal.pending();
+    }
+}
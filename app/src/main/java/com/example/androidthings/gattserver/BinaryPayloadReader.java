@@ -0,0 +1,161 @@
+package com.example.androidthings.gattserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder of payloads written by {@link BinaryPayloadWriter}. It uses only plain Java, so it
+ * can be used on cloud side as well.
+ *
+ * <pre>
+ * BinaryPayloadReader reader = new BinaryPayloadReader(payload);
+ * while (reader.next()) {
+ *     reader.getSensorName(); reader.getTimestamp(); reader.getTemp(); reader.getHmdt();
+ * }
+ * </pre>
+ */
+public class BinaryPayloadReader {
+
+    private final byte[] payload;
+
+    private final int version;
+
+    private final int count;
+
+    private final String[] sensorNames;
+
+    private int position;
+
+    private int index;
+
+    private int sensorRef;
+
+    private long timestamp;
+
+    private int temp;
+
+    private int hmdt;
+
+    /**
+     * @param payload encoded batch
+     * @throws IllegalArgumentException if payload is malformed or of unknown version
+     */
+    public BinaryPayloadReader(byte[] payload) {
+        this.payload = payload;
+        if (payload.length < BinaryPayloadWriter.HEADER_SIZE + 1) {
+            throw new IllegalArgumentException("Payload too short: " + payload.length);
+        }
+        version = payload[0] & 0xFF;
+        if (version != BinaryPayloadWriter.VERSION) {
+            throw new IllegalArgumentException("Unknown payload version: " + version);
+        }
+        count = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        position = 4;
+        timestamp = getLong();
+
+        // skip records to read sensor table from trailer
+        int trailer = position;
+        for (int i = 0; i < count; i++) {
+            check(trailer + BinaryPayloadWriter.RECORD_SIZE);
+            int delta = getInt(trailer + 1);
+            trailer += BinaryPayloadWriter.RECORD_SIZE;
+            if (i > 0 && delta == BinaryPayloadWriter.ABSOLUTE_TIMESTAMP) {
+                trailer += 8;
+            }
+        }
+        check(trailer + 1);
+        sensorNames = new String[payload[trailer++] & 0xFF];
+        for (int i = 0; i < sensorNames.length; i++) {
+            check(trailer + 1);
+            int length = payload[trailer++] & 0xFF;
+            check(trailer + length);
+            sensorNames[i] = new String(payload, trailer, length, StandardCharsets.UTF_8);
+            trailer += length;
+        }
+    }
+
+    /**
+     * Move to next record.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() {
+        if (index >= count) {
+            return false;
+        }
+        sensorRef = payload[position++] & 0xFF;
+        if (sensorRef >= sensorNames.length) {
+            throw new IllegalArgumentException("Unknown sensor reference: " + sensorRef);
+        }
+        int delta = getInt(position);
+        position += 4;
+        if (index > 0 && delta == BinaryPayloadWriter.ABSOLUTE_TIMESTAMP) {
+            timestamp = getLong();
+        } else {
+            timestamp += delta;
+        }
+        temp = (short) (((payload[position] & 0xFF) << 8) | (payload[position + 1] & 0xFF));
+        hmdt = ((payload[position + 2] & 0xFF) << 8) | (payload[position + 3] & 0xFF);
+        position += 4;
+        index++;
+
+        return true;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Number of records in payload.
+     *
+     * @return number of records
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public String getSensorName() {
+        return sensorNames[sensorRef];
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Temperature of current record.
+     *
+     * @return temperature in tenths of degree centigrade
+     */
+    public int getTemp() {
+        return temp;
+    }
+
+    /**
+     * Humidity of current record.
+     *
+     * @return relative humidity in tenths of %RH
+     */
+    public int getHmdt() {
+        return hmdt;
+    }
+
+    private long getLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    private int getInt(int offset) {
+        return ((payload[offset] & 0xFF) << 24) | ((payload[offset + 1] & 0xFF) << 16)
+                | ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+    }
+
+    private void check(int length) {
+        if (length > payload.length) {
+            throw new IllegalArgumentException("Payload truncated.");
+        }
+    }
+}
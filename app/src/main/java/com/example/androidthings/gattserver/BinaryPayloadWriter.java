@@ -0,0 +1,172 @@
+package com.example.androidthings.gattserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of batch of readings, alternative to JSON for metered links. All
+ * numbers are big endian.
+ *
+ * <pre>
+ * header   u8  version (1)
+ *          u8  flags (0)
+ *          u16 number of records
+ *          s64 base timestamp, milliseconds since epoch
+ * record   u8  sensor reference, index into sensor table
+ *          s32 milliseconds since previous record (base timestamp for first record),
+ *              {@link #ABSOLUTE_TIMESTAMP} means s64 timestamp follows
+ *          s16 temperature in tenths of degree centigrade
+ *          u16 relative humidity in tenths of %RH
+ * trailer  u8  number of sensors in table
+ *          per sensor: u8 length, UTF-8 name
+ * </pre>
+ * Sensor table has only sensors that appear in batch, in order of their first record.
+ * Payloads are decoded by {@link BinaryPayloadReader}.
+ */
+public class BinaryPayloadWriter implements PayloadEncoder {
+
+    public static final int VERSION = 1;
+
+    /** Time delta marking that absolute timestamp follows */
+    public static final int ABSOLUTE_TIMESTAMP = Integer.MIN_VALUE;
+
+    static final int HEADER_SIZE = 12;
+
+    static final int RECORD_SIZE = 9;
+
+    private static final int MAX_RECORDS = 0xFFFF;
+
+    /** Encoded names of sensors, by sensor index */
+    private final byte[][] sensorNames;
+
+    /** Reference of sensor in current batch by sensor index, -1 if not referenced yet */
+    private final int[] sensorRefs;
+
+    /** Sensor indexes in order of references */
+    private final int[] referenced;
+
+    private int referencedCount;
+
+    private byte[] buffer;
+
+    private int size;
+
+    private int count;
+
+    private long previousTimestamp;
+
+    /**
+     * @param sensors sensors, indexed by sensor index, at most 255
+     * @param initialCapacity initial size of buffer
+     */
+    public BinaryPayloadWriter(List<LeSensor> sensors, int initialCapacity) {
+        if (sensors.size() > 0xFF) {
+            throw new IllegalArgumentException("Too many sensors: " + sensors.size());
+        }
+        sensorNames = new byte[sensors.size()][];
+        for (int i = 0; i < sensorNames.length; i++) {
+            byte[] name = sensors.get(i).getName().getBytes(StandardCharsets.UTF_8);
+            sensorNames[i] = name.length > 0xFF ? Arrays.copyOf(name, 0xFF) : name;
+        }
+        sensorRefs = new int[sensors.size()];
+        referenced = new int[sensors.size()];
+        buffer = new byte[Math.max(initialCapacity, HEADER_SIZE)];
+    }
+
+    @Override
+    public void begin() {
+        Arrays.fill(sensorRefs, -1);
+        referencedCount = 0;
+        count = 0;
+        size = HEADER_SIZE;
+        buffer[0] = VERSION;
+        buffer[1] = 0;
+    }
+
+    @Override
+    public void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (count == MAX_RECORDS) {
+            throw new IllegalStateException("Batch is full.");
+        }
+        int ref = sensorRefs[sensorIndex];
+        if (ref < 0) {
+            ref = referencedCount;
+            referenced[referencedCount++] = sensorIndex;
+            sensorRefs[sensorIndex] = ref;
+        }
+
+        ensureCapacity(RECORD_SIZE + 8);
+        buffer[size++] = (byte) ref;
+        if (count == 0) {
+            putLong(4, timestamp);
+            putInt(0);
+        } else {
+            long delta = timestamp - previousTimestamp;
+            if (delta > Integer.MIN_VALUE && delta <= Integer.MAX_VALUE) {
+                putInt((int) delta);
+            } else {
+                putInt(ABSOLUTE_TIMESTAMP);
+                putLong(size, timestamp);
+                size += 8;
+            }
+        }
+        putShort(temp);
+        putShort(hmdt);
+        previousTimestamp = timestamp;
+        count++;
+    }
+
+    @Override
+    public void end() {
+        buffer[2] = (byte) (count >> 8);
+        buffer[3] = (byte) count;
+        if (count == 0) {
+            putLong(4, 0);
+        }
+        ensureCapacity(1);
+        buffer[size++] = (byte) referencedCount;
+        for (int i = 0; i < referencedCount; i++) {
+            byte[] name = sensorNames[referenced[i]];
+            ensureCapacity(1 + name.length);
+            buffer[size++] = (byte) name.length;
+            System.arraycopy(name, 0, buffer, size, name.length);
+            size += name.length;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void putShort(int value) {
+        buffer[size++] = (byte) (value >> 8);
+        buffer[size++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        buffer[size++] = (byte) (value >> 24);
+        buffer[size++] = (byte) (value >> 16);
+        buffer[size++] = (byte) (value >> 8);
+        buffer[size++] = (byte) value;
+    }
+
+    private void putLong(int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
@@ -2,96 +2,141 @@ package com.example.androidthings.gattserver;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Reads BLE sensors by scan and GATT and publishes their data to {@link EventBus}.
+ * <p>
+ * Work is split over threads so a slow stage does not delay the others. Scan results are
+ * delivered on the main thread, it only copies raw advertisements of known sensors into
+ * {@link ScanResultQueue}, they are decoded on GATT thread owned by the service. GATT
+ * connections, their operations and notifications are handled on the GATT thread too, public
+ * GATT methods may be called from any thread and are posted to it. Subscribers of the event
+ * bus choose their own threads, the bus is a bounded ring, subscriber that falls behind loses
+ * oldest events instead of blocking publishers.
+ */
 public class BluetoothLeService extends Service {
 
     private static final String TAG = BluetoothLeService.class.getSimpleName();
 
-    /** Scan BLE devices for 10 seconds */
-    private static final int SCAN_PERIOD = 10000;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_SCAN_FINISHED =
-            "com.example.bluetooth.le.ACTION_SCAN_FINISHED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String ACTION_BROADCAST_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_BROADCAST_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-    public final static String DATA_TYPE =
-            "com.example.bluetooth.le.DATA_TYPE";
-    public final static String DATA_TYPE_TEMP =
-            "com.example.bluetooth.le.DATA_TYPE_TEMP";
-    public final static String DATA_TYPE_HMDT =
-            "com.example.bluetooth.le.DATA_TYPE_HMDT";
-    public final static String DATA_TYPE_LUX =
-            "com.example.bluetooth.le.DATA_TYPE_LUX";
-    public final static String DATA_TYPE_DHT =
-            "com.example.bluetooth.le.DATA_TYPE_DHT";
-
-    /** LE scan handler */
-    private Handler mLeScanHandler;
+    /**
+     * Restart continuous scan every 25 minutes, Android silently downgrades scans that
+     * are running longer than 30 minutes.
+     */
+    private static final int SCAN_RESTART_PERIOD = 25 * 60 * 1000;
 
-    /** Main thread handler - for UI updates */
-    Handler handler;
+    /** Default scan mode, see {@link #setScanMode(int)} */
+    public static final int DEFAULT_SCAN_MODE = ScanSettings.SCAN_MODE_BALANCED;
+
+    /** Number of event slots in event bus */
+    private static final int EVENT_BUS_CAPACITY = EventBus.DEFAULT_CAPACITY;
+
+    /** Number of scan results waiting for decoding */
+    private static final int SCAN_QUEUE_CAPACITY = 64;
+
+    /** LE scan handler, on GATT thread */
+    private Handler mLeScanHandler;
 
-    /** BLE Disconnected */
-    private static final int STATE_DISCONNECTED = 0;
-    /** BLE Connecting */
-    private static final int STATE_CONNECTING = 1;
-    /** BLE Connected */
-    private static final int STATE_CONNECTED = 2;
+    /** Thread of GATT connections and scan timers */
+    private HandlerThread mGattThread;
 
-    /** Current connection state */
-    private int mConnectionState = STATE_DISCONNECTED;
+    /** Handler of GATT thread */
+    private Handler mGattHandler;
 
     /** Bluetooth API */
     private BluetoothManager mBluetoothManager;
 
     /** Is scanning in progress */
-    private boolean mScanning;
+    private volatile boolean mScanning;
 
-    /** GATT client for communication with GATT server */
-    private BluetoothGatt mBluetoothGatt;
-
-    /** Address of remote BLE device */
-    private String mBluetoothDeviceAddress;
-
-    /** List of services on BLE device that is connected */
-    private List<BluetoothGattService> mServices;
+    /** GATT sessions with remote BLE devices */
+    private GattConnectionManager mGattConnections;
 
     /** Example of LUX value form TI SensorTag */
     private short mLux;
 
-    /** MAC address of device currently scanned for */
-    private String mScannedMac;
+    /** Is continuous scan of all registered sensors in progress */
+    private volatile boolean mContinuousScan;
+
+    /**
+     * Sensors read by continuous scan. Replaced, never modified, as it is read on main
+     * thread by scan callback.
+     */
+    private volatile ScanTargets mScanTargets = new ScanTargets(new LeSensor[0]);
+
+    /** Scan mode of continuous scan */
+    private int mScanMode = DEFAULT_SCAN_MODE;
+
+    /** Delay of batched scan results in milliseconds, 0 delivers each result immediately */
+    private long mReportDelay;
+
+    /** Filters of running scan, reused when scan is restarted */
+    private List<ScanFilter> mScanFilters;
+
+    /** Settings of running scan, reused when scan is restarted */
+    private ScanSettings mScanSettings;
+
+    /** History of readings, written by GATT thread */
+    private volatile ReadingStore mReadingStore;
+
+    /** Scan results handed over from main thread to GATT thread */
+    private final ScanResultQueue mScanQueue = new ScanResultQueue(SCAN_QUEUE_CAPACITY);
+
+    /** Is drain of scan queue posted to GATT thread */
+    private final AtomicBoolean mScanDrainPosted = new AtomicBoolean();
+
+    /**
+     * Sensors read by scan and index of their packed MAC addresses to position in array.
+     */
+    private static final class ScanTargets {
+
+        final LeSensor[] sensors;
+
+        final MacIndex index;
+
+        ScanTargets(LeSensor[] sensors) {
+            this.sensors = sensors;
+            this.index = new MacIndex(sensors.length);
+            for (int i = 0; i < sensors.length; i++) {
+                index.put(sensors[i].getMacAddress(), i);
+            }
+        }
+
+        /**
+         * Find sensor by address, unknown devices are rejected without parsing the address.
+         *
+         * @param address device address
+         * @return sensor or null
+         */
+        LeSensor find(String address) {
+            int position = index.get(address);
+            return position != MacIndex.NOT_FOUND ? sensors[position] : null;
+        }
+    }
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
@@ -101,10 +146,29 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    /** Events for activity and other consumers */
+    private final EventBus mEventBus = new EventBus(EVENT_BUS_CAPACITY);
+
+    /** Codecs of sensor types, data is decoded by codec registered for it */
+    private final SensorRegistry mSensorRegistry = SensorRegistry.createDefault();
+
+    /** Characteristic values decoded on GATT thread, that are not full readings */
+    private final Reading mValueReading = new Reading();
+
     @Override
     public void onCreate() {
-        handler = new Handler();
         super.onCreate();
+        mGattThread = new HandlerThread("gatt");
+        mGattThread.start();
+        mGattHandler = new Handler(mGattThread.getLooper());
+        mLeScanHandler = mGattHandler;
+    }
+
+    @Override
+    public void onDestroy() {
+        // closing connections posted by onUnbind runs before the thread quits
+        mGattThread.quitSafely();
+        super.onDestroy();
     }
 
     @Override
@@ -134,47 +198,177 @@ public class BluetoothLeService extends Service {
                 return false;
             }
         }
+        if (mGattConnections == null) {
+            mGattConnections = new GattConnectionManager(this, mBluetoothManager.getAdapter(),
+                    mGattHandler, mGattListener);
+        }
 
         return true;
     }
 
     /**
-     * Scan for BLE device with specified MAC address.
+     * Event bus on which all events of this service are published.
      *
-     * @param enable true to enable scanning
-     * @param scannedMac MAC address to scan for
+     * @return event bus
      */
-    public void scanLeDevice(final boolean enable, final String scannedMac) {
+    public EventBus getEventBus() {
+        return mEventBus;
+    }
 
-        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
-        final BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+    /**
+     * Set store that keeps history of sensor readings.
+     *
+     * @param readingStore store indexed by sensor index
+     */
+    public void setReadingStore(ReadingStore readingStore) {
+        mReadingStore = readingStore;
+    }
 
-        if (enable) {
-            mLeScanHandler = new Handler();
-            mLeScanHandler.postDelayed(new Runnable() {
+    public ReadingStore getReadingStore() {
+        return mReadingStore;
+    }
 
-                @Override
-                public void run() {
-                    if (mScanning) {
-                        mScanning = false;
-                        mScannedMac = null;
-                        bluetoothLeScanner.stopScan(mLeScanCallback);
-                        broadcastUpdate(ACTION_SCAN_FINISHED);
-                    }
+    /**
+     * Set scan mode of continuous scan, applies to next started scan.
+     *
+     * @param scanMode one of ScanSettings.SCAN_MODE_* constants
+     */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * Set delay of batched scan results, applies to next started scan. Controller collects
+     * advertisements and delivers them in one {@code onBatchScanResults} call, which saves
+     * CPU wake ups. Ignored if controller does not support batching.
+     *
+     * @param reportDelay delay in milliseconds, 0 delivers each result immediately
+     */
+    public void setReportDelay(long reportDelay) {
+        mReportDelay = reportDelay;
+    }
+
+    /**
+     * Build scan filters that match only advertisements of given sensors carrying manufacturer
+     * data of registered sensor type, so the controller does not wake the app for other
+     * devices.
+     */
+    private List<ScanFilter> buildScanFilters(List<LeSensor> sensors) {
+        List<ScanFilter> filters = new ArrayList<>(sensors.size());
+        for (LeSensor sensor : sensors) {
+            for (Sensor type : mSensorRegistry.getSensors()) {
+                if (type.getManufacturerId() == Sensor.NO_MANUFACTURER) {
+                    continue;
                 }
-            }, SCAN_PERIOD);
+                filters.add(new ScanFilter.Builder()
+                        .setDeviceAddress(sensor.getMac().toUpperCase())
+                        .setManufacturerData(type.getManufacturerId(), new byte[0])
+                        .build());
+            }
+        }
+        return filters;
+    }
 
-            mScanning = true;
-            mScannedMac = scannedMac;
-            bluetoothLeScanner.startScan(mLeScanCallback);
-        } else {
-            mScanning = false;
-            mScannedMac = null;
+    private ScanSettings buildScanSettings(int scanMode, long reportDelay) {
+        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
+        if (reportDelay > 0 && !bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            Log.w(TAG, "Batched scan not supported, results are reported immediately.");
+            reportDelay = 0;
+        }
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(reportDelay)
+                .build();
+    }
+
+    /**
+     * Start long running scan that reads all registered sensors in single scan session.
+     * Each advertisement is routed to sensor with matching MAC address, sensor is read
+     * once its deadline passes, see {@link ReadScheduler}. Only {@link LeSensor#TYPE_BROADCAST}
+     * sensors are read by scan, GATT sensors are skipped. Scan is not started if there is no
+     * sensor to filter for, as scan without filters wakes the app for every advertisement.
+     *
+     * @param sensors sensors to read
+     */
+    public void startContinuousScan(final List<LeSensor> sensors) {
+
+        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
+        BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+
+        if (mScanning) {
             bluetoothLeScanner.stopScan(mLeScanCallback);
-            broadcastUpdate(ACTION_SCAN_FINISHED);
+            mScanning = false;
+        }
+        mLeScanHandler.removeCallbacks(mScanRestarter);
+
+        List<LeSensor> scanSensors = new ArrayList<>();
+        for (LeSensor sensor : sensors) {
+            if (sensor.getType() == LeSensor.TYPE_BROADCAST) {
+                scanSensors.add(sensor);
+            }
+        }
+        mScanTargets = new ScanTargets(scanSensors.toArray(new LeSensor[scanSensors.size()]));
+        mScanFilters = buildScanFilters(scanSensors);
+        if (mScanFilters.isEmpty()) {
+            // empty filter list matches every advertisement
+            mContinuousScan = false;
+            Log.i(TAG, "No broadcast sensor to scan for, continuous scan not started.");
+            return;
+        }
+        mScanSettings = buildScanSettings(mScanMode, mReportDelay);
+
+        mLeScanHandler.postDelayed(mScanRestarter, SCAN_RESTART_PERIOD);
+
+        mContinuousScan = true;
+        mScanning = true;
+        bluetoothLeScanner.startScan(mScanFilters, mScanSettings, mLeScanCallback);
+        Log.i(TAG, "Continuous scan started for " + scanSensors.size() + " sensors.");
+    }
+
+    /**
+     * Stop continuous scan of registered sensors.
+     */
+    public void stopContinuousScan() {
+        if (!mContinuousScan) {
+            return;
         }
+        mLeScanHandler.removeCallbacks(mScanRestarter);
+        mContinuousScan = false;
+        mScanning = false;
+        mBluetoothManager.getAdapter().getBluetoothLeScanner().stopScan(mLeScanCallback);
+        if (mScanQueue.getDropped() > 0) {
+            Log.w(TAG, mScanQueue.getDropped() + " scan results dropped, queue was full.");
+        }
+        broadcastUpdate(LeEvent.SCAN_FINISHED);
+    }
+
+    /**
+     * Is continuous scan of registered sensors running.
+     *
+     * @return true if continuous scan is running
+     */
+    public boolean isContinuousScanning() {
+        return mContinuousScan;
     }
 
+    /**
+     * Restarts continuous scan before Android stops delivering its results.
+     */
+    private final Runnable mScanRestarter = new Runnable() {
+
+        @Override
+        public void run() {
+            if (mContinuousScan) {
+                BluetoothLeScanner bluetoothLeScanner =
+                        mBluetoothManager.getAdapter().getBluetoothLeScanner();
+                bluetoothLeScanner.stopScan(mLeScanCallback);
+                bluetoothLeScanner.startScan(mScanFilters, mScanSettings, mLeScanCallback);
+                Log.d(TAG, "Continuous scan restarted.");
+                mLeScanHandler.postDelayed(this, SCAN_RESTART_PERIOD);
+            }
+        }
+    };
+
     /**
      * Callback for BLE scanning.
      *
@@ -186,301 +380,516 @@ public class BluetoothLeService extends Service {
         public void onScanResult(int callbackType, final ScanResult result) {
             super.onScanResult(callbackType, result);
 
-
-                final BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
-                runOnUiThread(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        BluetoothDevice device = result.getDevice();
-                        String deviceName = device.getName();
-                        String deviceMac = device.getAddress();
-                        ScanRecord scanRecord = result.getScanRecord();
-                        BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-                        Log.i(TAG, "Device: " + deviceName + " (" + deviceMac + ")");
-                        if (mScannedMac.equalsIgnoreCase(deviceMac)) {
-                            Log.i(TAG, "Device FOUND.");
-                            byte[] manuData = scanRecord.getManufacturerSpecificData(0x0059);
-                            Log.d(TAG, "Device manufacturer data: " + manuData);
-                            bluetoothLeScanner.stopScan(mLeScanCallback);
-                            mScanning = false;
-                            if (Dht22.chechSum(manuData)) {
-                                broadcastUpdate(ACTION_BROADCAST_DATA_AVAILABLE, manuData);
-                            } else {
-                                Log.e(TAG, "Wrong checksum on DHT data.");
-                                broadcastUpdate(ACTION_SCAN_FINISHED);
-                            }
-                        }
-                    }
-                });
+            // Called on main thread for every matching advertisement, decoded on GATT thread
+            LeSensor sensor = findSensor(result.getDevice().getAddress());
+            if (sensor != null) {
+                queueScanResult(sensor, result, SystemClock.elapsedRealtime(),
+                        System.currentTimeMillis());
+            }
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
+
+            // Results are in order of reception, clock is read once for whole batch
+            long now = SystemClock.elapsedRealtime();
+            long wallNow = System.currentTimeMillis();
+            for (int i = 0, n = results.size(); i < n; i++) {
+                ScanResult result = results.get(i);
+                LeSensor sensor = findSensor(result.getDevice().getAddress());
+                if (sensor != null) {
+                    queueScanResult(sensor, result, now, wallNow);
+                }
+            }
         }
 
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
+            Log.e(TAG, "Scan failed: " + errorCode);
+            mLeScanHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    // Let the owner start a new scan
+                    mLeScanHandler.removeCallbacks(mScanRestarter);
+                    mContinuousScan = false;
+                    mScanning = false;
+                    broadcastUpdate(LeEvent.SCAN_FINISHED);
+                }
+            });
         }
     };
 
     /**
-     * Callback methods defined by the BLE API.
+     * Find sensor that sent advertisement.
+     *
+     * @param deviceMac address of advertising device
+     * @return sensor or null if device is not scanned for
      */
-    private final BluetoothGattCallback mGattCallback =
+    private LeSensor findSensor(String deviceMac) {
+        return mScanTargets.find(deviceMac);
+    }
+
+    /**
+     * Copy scan result into queue and let GATT thread decode it, called on main thread.
+     */
+    private void queueScanResult(LeSensor sensor, ScanResult result, long now, long wallNow) {
+        ScanRecord scanRecord = result.getScanRecord();
+        if (scanRecord == null) {
+            return;
+        }
+        if (!mScanQueue.offer(sensor, scanRecord.getBytes(), result.getTimestampNanos(), now,
+                wallNow)) {
+            return;
+        }
+        if (mScanDrainPosted.compareAndSet(false, true)) {
+            mGattHandler.post(mScanDrainer);
+        }
+    }
+
+    /**
+     * Decodes all queued scan results, on GATT thread.
+     */
+    private final Runnable mScanDrainer = new Runnable() {
+
+        @Override
+        public void run() {
+            // cleared first, result queued meanwhile posts drain again
+            mScanDrainPosted.set(false);
+            while (!mScanQueue.isEmpty()) {
+                handleScanResult(mScanQueue.peekSensor(), mScanQueue.peekRecord(),
+                        mScanQueue.peekTimestampNanos(), mScanQueue.peekNow(),
+                        mScanQueue.peekWallNow());
+                mScanQueue.remove();
+            }
+        }
+    };
+
+    /**
+     * Read data of sensor from its advertisement. The scan keeps running so all other
+     * sensors are still read in the same scan session.
+     *
+     * Manufacturer data is decoded in place from raw advertisement into sensor's reading, by
+     * codec registered for its company identifier.
+     *
+     * Batched result may be received long before it is delivered, its reception time is
+     * derived from result timestamp. Called on GATT thread.
+     *
+     * @param sensor sensor that sent the advertisement
+     * @param record raw advertising data
+     * @param timestampNanos reception time of result, elapsed realtime nanos
+     * @param now time of delivery, {@link SystemClock#elapsedRealtime()} based
+     * @param wallNow time of delivery, milliseconds since epoch
+     */
+    private void handleScanResult(LeSensor sensor, byte[] record, long timestampNanos,
+                                  long now, long wallNow) {
+        long age = now - timestampNanos / 1000000;
+        if (age > 0) {
+            now -= age;
+            wallNow -= age;
+        }
+        if (!mContinuousScan || !sensor.isReadDue(now)) {
+            // results queued before scan was stopped are dropped
+            return;
+        }
+        Reading reading = sensor.getReading();
+        int prevTemp = reading.getTemp();
+        int prevHmdt = reading.getHmdt();
+        int dataType = mSensorRegistry.decodeAdvertisement(record, reading);
+        if (dataType == LeEvent.DATA_TYPE_DHT) {
+            reading.setTimestamp(wallNow);
+            if (sensor.getLastReadTime() != 0) {
+                sensor.adaptPeriod(reading.getTemp() - prevTemp, reading.getHmdt() - prevHmdt);
+            }
+            sensor.advanceDeadline(now);
+            sensor.setLastReadTime(now);
+            ReadingStore readingStore = mReadingStore;
+            if (readingStore != null) {
+                readingStore.add(sensor);
+            }
+            broadcastUpdate(LeEvent.BROADCAST_DATA_AVAILABLE, sensor);
+        } else {
+            Log.e(TAG, "No valid data in advertisement of " + sensor.getName() + ".");
+        }
+    }
+
+    /**
+     * Receives GATT events of all connections and publishes them to event bus.
+     */
+    private final GattConnectionManager.Listener mGattListener =
+            new GattConnectionManager.Listener() {
 
-            new BluetoothGattCallback() {
                 @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status,
-                                                    int newState) {
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        mConnectionState = STATE_CONNECTED;
-                        broadcastUpdate(ACTION_GATT_CONNECTED);
-                        Log.i(TAG, "Connected to GATT server.");
-                        Log.i(TAG, "Attempting to start service discovery:" +
-                                mBluetoothGatt.discoverServices());
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        mConnectionState = STATE_DISCONNECTED;
-                        broadcastUpdate(ACTION_GATT_DISCONNECTED);
-                        Log.i(TAG, "Disconnected from GATT server.");
-                    }
+                public void onConnected(GattConnection connection) {
+                    broadcastUpdate(LeEvent.GATT_CONNECTED, connection.getSensor().getIndex());
                 }
 
                 @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        Log.i(TAG, "Services discovered " + status);
-                        mServices = mBluetoothGatt.getServices();
-                        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                    } else {
-                        Log.w(TAG, "onServicesDiscovered received: " + status);
-                    }
+                public void onServicesDiscovered(GattConnection connection) {
+                    Log.i(TAG, "Services discovered on " + connection.getSensor().getName());
+                    broadcastUpdate(LeEvent.GATT_SERVICES_DISCOVERED,
+                            connection.getSensor().getIndex());
                 }
 
                 @Override
-                public void onCharacteristicRead(BluetoothGatt gatt,
-                                                 BluetoothGattCharacteristic characteristic,
-                                                 int status) {
-                    Log.i(TAG, "Characteristic read.");
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                    }
+                public void onCharacteristicChanged(GattConnection connection, UUID charUuid,
+                                                    byte[] value) {
+                    handleValue(LeEvent.NOTIFICATION_DATA_AVAILABLE, connection.getSensor(),
+                            charUuid, value);
                 }
 
                 @Override
-                public void onCharacteristicChanged(BluetoothGatt gatt,
-                                                    BluetoothGattCharacteristic characteristic) {
-                    Log.i(TAG, "Characteristic changed.");
-//                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                public void onDisconnected(GattConnection connection) {
+                    broadcastUpdate(LeEvent.GATT_DISCONNECTED, connection.getSensor().getIndex());
                 }
             };
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE sensor. Multiple sensors may be
+     * connected at once, if all connection slots are used the sensor waits for a free one.
      *
-     * @param address The device address of the destination device.
+     * @param sensor sensor to connect
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     * @return Return true if the connection request is passed to GATT thread. The connection
+     *         result is published as {@link LeEvent#GATT_SERVICES_DISCOVERED} or
+     *         {@link LeEvent#GATT_DISCONNECTED} event.
      */
-    private boolean connect(final String address) {
-
-        final BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
-
-        if (bluetoothAdapter == null || address == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+    public boolean connect(final LeSensor sensor) {
+        if (mGattConnections == null) {
             return false;
         }
+        mGattHandler.post(new Runnable() {
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+            @Override
+            public void run() {
+                if (!mGattConnections.connect(sensor)) {
+                    Log.w(TAG, "Unable to connect " + sensor.getName());
+                }
             }
-        }
+        });
+        return true;
+    }
 
-        final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found. Unable to connect.");
-            return false;
-        }
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+    /**
+     * Set limit of concurrently open GATT connections.
+     *
+     * @param maxConnections maximal number of open connections
+     */
+    public void setMaxConnections(final int maxConnections) {
+        mGattHandler.post(new Runnable() {
 
-        return true;
+            @Override
+            public void run() {
+                mGattConnections.setMaxConnections(maxConnections);
+            }
+        });
+    }
+
+    /**
+     * Close GATT connection of sensor, and release its resources.
+     *
+     * @param sensor connected sensor
+     */
+    public void close(final LeSensor sensor) {
+        if (mGattConnections != null) {
+            mGattHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    mGattConnections.close(sensor);
+                }
+            });
+        }
     }
 
     /**
      * Ensure resources are released properly after BLE usage.
      */
     public void close() {
-        mBluetoothDeviceAddress = null;
-        if (mBluetoothGatt == null) {
-            return;
+        if (mGattConnections != null) {
+            mGattHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    mGattConnections.closeAll();
+                }
+            });
         }
-        mBluetoothGatt.disconnect();
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
      * Turn on specified characteristic, this method is specific to TI SensorTag, that
      * has to have byte 0x01 written to turn on certain sensor.
      *
+     * @param sensor connected sensor
      * @param charToTurnoOnUuid characteristic UUID
+     * @return future completed when the value is written
      */
-    public void turnOnCharacteristics(UUID charToTurnoOnUuid) {
+    public CompletableFuture<byte[]> turnOnCharacteristics(LeSensor sensor,
+                                                           UUID charToTurnoOnUuid) {
 
         byte[] on = {0x01};
-        writeCharacteristic(charToTurnoOnUuid, on);
+        return writeCharacteristic(sensor, charToTurnoOnUuid, on);
     }
 
     /**
-     * Get certain characteristic based on its UUID form list of characteristics that was retreived
-     * when GATT was connected. Before calling this method GATT has to be connected otherwise service
-     * list is not available.
+     * Queue write of characteristic. Operations on one sensor are issued one after another,
+     * each when the previous one is confirmed by the sensor.
      *
-     * @param charUuid UUID of desired characteristic
-     * @return characteristic
+     * @param sensor connected sensor
+     * @param charUuid characteristic UUID
+     * @param value byte array to write to characteristic
+     * @return future completed when the value is written
      */
-    private BluetoothGattCharacteristic getGattCharacteristic(UUID charUuid) {
+    public CompletableFuture<byte[]> writeCharacteristic(LeSensor sensor, UUID charUuid,
+                                                         byte[] value) {
+        return submit(sensor, GattOperation.write(charUuid, value));
+    }
 
-        BluetoothGattCharacteristic characteristic = null;
+    /**
+     * Queue read of characteristic.
+     * Value is also published as {@link LeEvent#DATA_AVAILABLE} event, temperature and
+     * humidity value is a full reading and is added to history like notified readings.
+     *
+     * @param sensor connected sensor
+     * @param charUuid characteristic UUID
+     * @return future completed with value read
+     */
+    public CompletableFuture<byte[]> readCharacteristic(final LeSensor sensor,
+                                                        final UUID charUuid) {
+        CompletableFuture<byte[]> future = submit(sensor, GattOperation.read(charUuid));
+        future.thenAccept(new Consumer<byte[]>() {
+
+            @Override
+            public void accept(byte[] value) {
+                Log.i(TAG, "Characteristic read.");
+                handleValue(LeEvent.DATA_AVAILABLE, sensor, charUuid, value);
+            }
+        });
+        return future;
+    }
 
-        if (mServices == null)
-            return null;
+    /**
+     * Queue enabling or disabling of notifications of characteristic.
+     *
+     * @param sensor connected sensor
+     * @param charUuid characteristic UUID
+     * @param enable true to enable notifications
+     * @return future completed when client configuration descriptor is written
+     */
+    public CompletableFuture<byte[]> setNotification(LeSensor sensor, UUID charUuid,
+                                                     boolean enable) {
+        return submit(sensor, GattOperation.notify(charUuid, enable));
+    }
+
+    /**
+     * Queue write of descriptor.
+     *
+     * @param sensor connected sensor
+     * @param charUuid UUID of characteristic the descriptor belongs to
+     * @param descUuid descriptor UUID
+     * @param value byte array to write to descriptor
+     * @return future completed when the value is written
+     */
+    public CompletableFuture<byte[]> writeDescriptor(LeSensor sensor, UUID charUuid,
+                                                     UUID descUuid, byte[] value) {
+        return submit(sensor, GattOperation.writeDescriptor(charUuid, descUuid, value));
+    }
+
+    /**
+     * Queue pause between operations, e.g. to let sensor stabilize after it is turned on.
+     * No thread is blocked.
+     *
+     * @param sensor connected sensor
+     * @param delay delay in milliseconds
+     * @return future completed after the delay
+     */
+    public CompletableFuture<byte[]> delay(LeSensor sensor, long delay) {
+        return submit(sensor, GattOperation.delay(delay));
+    }
 
-        String uuid = null;
+    /**
+     * Switch connected SensorTag sensor to streaming mode. Refresh period is written and
+     * sensors are turned on, then notifications of their data are enabled. Connection is kept
+     * open and each notification is published as {@link LeEvent#NOTIFICATION_DATA_AVAILABLE}.
+     * Only sensors the device has are configured.
+     *
+     * @param sensor connected sensor
+     * @param period refresh period in milliseconds, see {@link Sensor#refreshPeriod(long)}
+     * @return future completed when the last notification is enabled
+     */
+    public CompletableFuture<byte[]> startStreaming(final LeSensor sensor, final long period) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        mGattHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                configureStreaming(sensor, period).whenComplete(
+                        new BiConsumer<byte[], Throwable>() {
+
+                            @Override
+                            public void accept(byte[] value, Throwable throwable) {
+                                if (throwable != null) {
+                                    result.completeExceptionally(throwable);
+                                } else {
+                                    result.complete(value);
+                                }
+                            }
+                        });
+            }
+        });
+        return result;
+    }
 
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : mServices) {
-            uuid = gattService.getUuid().toString();
-//            Log.d(TAG, "Service: " + uuid);
-            List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                uuid = gattCharacteristic.getUuid().toString();
-                if (gattCharacteristic.getUuid().equals(charUuid)) {
-                    characteristic = gattCharacteristic;
+    /**
+     * Queue streaming configuration of sensor, called on GATT thread.
+     */
+    private CompletableFuture<byte[]> configureStreaming(LeSensor sensor, long period) {
+        GattConnection connection = mGattConnections != null
+                ? mGattConnections.getConnection(sensor) : null;
+        if (connection == null || !connection.isReady()) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                    new IOException("Sensor " + sensor.getName() + " not connected"));
+            return future;
+        }
+        connection.setStreaming(true);
+        byte[] refreshPeriod = Sensor.refreshPeriod(period);
+        CompletableFuture<byte[]> future = null;
+        // every registered sensor type the device has is turned on and notifies its data
+        for (Sensor type : mSensorRegistry.getSensors()) {
+            for (UUID dataUuid : type.getDataCharacteristics()) {
+                if (connection.getCharacteristic(dataUuid) == null) {
+                    continue;
+                }
+                if (type.getRefreshCharacteristic() != null) {
+                    writeCharacteristic(sensor, type.getRefreshCharacteristic(), refreshPeriod);
+                }
+                if (type.getConfigCharacteristic() != null) {
+                    turnOnCharacteristics(sensor, type.getConfigCharacteristic());
                 }
-//                Log.d(TAG, "Char: " + uuid);
+                future = setNotification(sensor, dataUuid, true);
             }
         }
-
-        return characteristic;
+        if (future == null) {
+            connection.setStreaming(false);
+            future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException(
+                    "Sensor " + sensor.getName() + " has no streaming data"));
+        }
+        return future;
     }
 
     /**
-     * Issue write of characteristic.
+     * Decode characteristic value, read or notified, and publish it. Temperature and humidity
+     * value is a full reading, it is added to history like broadcast readings. Called on GATT
+     * thread.
      *
+     * @param event {@link LeEvent#DATA_AVAILABLE} or
+     * {@link LeEvent#NOTIFICATION_DATA_AVAILABLE}
+     * @param sensor sensor the value is from
      * @param charUuid characteristic UUID
-     * @param value byte array to write to characteristic
+     * @param value read or notified value
      */
-    private void writeCharacteristic(UUID charUuid, byte[] value) {
-        if (mBluetoothGatt == null || mServices == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    private void handleValue(int event, LeSensor sensor, UUID charUuid, byte[] value) {
+        int dataType = mSensorRegistry.decodeCharacteristic(charUuid, value, mValueReading);
+        if (dataType == LeEvent.DATA_TYPE_DHT) {
+            Reading reading = sensor.getReading();
+            reading.setTemp(mValueReading.getTemp());
+            reading.setHmdt(mValueReading.getHmdt());
+            reading.setTimestamp(System.currentTimeMillis());
+            sensor.setLastReadTime(SystemClock.elapsedRealtime());
+            ReadingStore readingStore = mReadingStore;
+            if (readingStore != null) {
+                readingStore.add(sensor);
+            }
+            broadcastUpdate(event, sensor);
+        } else {
+            broadcastUpdate(event, sensor, dataType);
         }
-        BluetoothGattCharacteristic characteristic = getGattCharacteristic(charUuid);
-        characteristic.setValue(value);
-        mBluetoothGatt.writeCharacteristic(characteristic);
     }
 
     /**
-     * Initiate read of characteristic.
-     * Response is handled by mGattCallback
-     *
-     * @param charUuid characteristic UUID
+     * Pass operation to GATT thread.
      */
-    public void readCharacteristic(UUID charUuid) {
-        if (mBluetoothGatt == null || mServices == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    private CompletableFuture<byte[]> submit(final LeSensor sensor,
+                                             final GattOperation operation) {
+        if (mGattConnections == null) {
+            operation.getFuture().completeExceptionally(
+                    new IllegalStateException("Service not initialized"));
+            return operation.getFuture();
         }
-        BluetoothGattCharacteristic characteristic = getGattCharacteristic(charUuid);
-        mBluetoothGatt.readCharacteristic(characteristic);
-        // response is handled by mGattCallback
-    }
+        if (Looper.myLooper() == mGattThread.getLooper()) {
+            return mGattConnections.submit(sensor, operation);
+        }
+        mGattHandler.post(new Runnable() {
 
-    private void runOnUiThread(Runnable runnable) {
-        handler.post(runnable);
+            @Override
+            public void run() {
+                mGattConnections.submit(sensor, operation);
+            }
+        });
+        return operation.getFuture();
     }
 
     /*
-     * Broadcasting as a service, back to receiver.
+     * Publishing events of service, back to subscribers.
      */
 
     /**
-     * Broadcast simple event, back to receiver.
+     * Publish simple event.
      *
-     * @param action event / action
+     * @param event event type
      */
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
+    private void broadcastUpdate(final int event) {
+        mEventBus.publish(event, -1);
+    }
 
-        sendBroadcast(intent);
+    /**
+     * Publish simple event of single sensor.
+     *
+     * @param event event type
+     * @param sensorIndex index of sensor
+     */
+    private void broadcastUpdate(final int event, final int sensorIndex) {
+        mEventBus.publish(event, sensorIndex);
     }
 
     /**
-     * Broadcast action / event and additional data. Used for returning data
-     * read from characteristic of BLE sensor.
+     * Publish event and additional data. Used for returning data
+     * read from characteristic of BLE sensor, decoded on GATT thread.
      *
-     * @param action event / data read usually
-     * @param characteristic characteristic data
-     */
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-
-        final Intent intent = new Intent(action);
-
-        if (OpticalSensor.OPTICAL_DATA.equals(characteristic.getUuid())) {
-            intent.putExtra(DATA_TYPE, DATA_TYPE_LUX);
-            intent.putExtra(EXTRA_DATA, Double.valueOf((double)OpticalSensor.lux(characteristic.getValue())));
-        } else if (HTSensor.HT_DATA.equals(characteristic.getUuid())) {
-//            intent.putExtra(DATA_TYPE, DATA_TYPE_HMDT);
-            intent.putExtra(DATA_TYPE, DATA_TYPE_TEMP);
-//            intent.putExtra(EXTRA_DATA, Double.valueOf((double)HTSensor.humidity(characteristic.getValue())));
-            intent.putExtra(EXTRA_DATA, Double.valueOf((double)HTSensor.temp(characteristic.getValue())));
+     * @param event event / data read usually
+     * @param sensor sensor the characteristic was read from
+     * @param dataType type of decoded data, values are in {@link #mValueReading}
+     */
+    private void broadcastUpdate(final int event, final LeSensor sensor, final int dataType) {
+
+        long now = System.currentTimeMillis();
+
+        if (dataType == LeEvent.DATA_TYPE_NONE || dataType == LeEvent.DATA_TYPE_UNKNOWN) {
+            // undecoded data is not interpreted, consumers see its type only
+            mEventBus.publish(event, sensor.getIndex(), now, dataType, 0, 0, 0);
         } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" +
-                        stringBuilder.toString());
-            }
+            mEventBus.publish(event, sensor.getIndex(), now, dataType, mValueReading.getTemp(),
+                    mValueReading.getHmdt(), mValueReading.getLux());
         }
-        sendBroadcast(intent);
     }
 
     /**
-     * Broadcast action / event and additional data. Used for returning data
-     * read from manufacturer broadcast data of BLE sensor.
+     * Publish event for reading of sensor, read from manufacturer broadcast data, read from
+     * GATT sensor or notified by streaming sensor.
      *
-     * @param action event / data read usually
-     * @param data broadcast data
+     * @param event event / data read usually
+     * @param sensor sensor that sent the data
      */
-    private void broadcastUpdate(final String action,
-                                 final byte[] data) {
-
-        final Intent intent = new Intent(action);
+    private void broadcastUpdate(final int event,
+                                 final LeSensor sensor) {
 
-        intent.putExtra(DATA_TYPE, DATA_TYPE_DHT);
-        intent.putExtra(DATA_TYPE_TEMP, Double.valueOf(Dht22.temp(data)));
-        intent.putExtra(DATA_TYPE_HMDT, Double.valueOf(Dht22.humidity(data)));
-        sendBroadcast(intent);
+        Reading reading = sensor.getReading();
+        mEventBus.publish(event, sensor.getIndex(), reading.getTimestamp(),
+                LeEvent.DATA_TYPE_DHT, reading.getTemp(), reading.getHmdt(), 0);
     }
 }
@@ -0,0 +1,50 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Conversion of days since epoch to date of proleptic Gregorian calendar, algorithm by Howard
+ * Hinnant. Date is packed into int, so conversion does not allocate.
+ */
+final class CivilDate {
+
+    private CivilDate() {
+    }
+
+    /**
+     * Convert days since epoch to date.
+     *
+     * @param day days since 1970-01-01
+     * @return packed date, see {@link #year(int)}, {@link #month(int)} and
+     * {@link #dayOfMonth(int)}
+     */
+    static int fromEpochDay(long day) {
+        long z = day + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        // months counted from March
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return (year << 9) | (month << 5) | dayOfMonth;
+    }
+
+    static int year(int date) {
+        return date >> 9;
+    }
+
+    /**
+     * @return month, 1 to 12
+     */
+    static int month(int date) {
+        return (date >> 5) & 0xF;
+    }
+
+    /**
+     * @return day of month, 1 to 31
+     */
+    static int dayOfMonth(int date) {
+        return date & 0x1F;
+    }
+}
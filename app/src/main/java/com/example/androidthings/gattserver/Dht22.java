@@ -1,9 +1,18 @@
 package com.example.androidthings.gattserver;
 
-public class Dht22 {
+/**
+ * DHT22 temperature and humidity sensor, advertises its readings as manufacturer data.
+ */
+public class Dht22 extends Sensor {
 
     private static final String TAG = Dht22.class.getSimpleName();
 
+    /** Company identifier under which DHT22 data is advertised */
+    public static final int MANUFACTURER_ID = 0x0059;
+
+    /** Length of DHT22 data, humidity, temperature and checksum */
+    public static final int DATA_LENGTH = 5;
+
     public static final double temp(byte[] value) {
         short rawTemp;
         double temp;
@@ -39,20 +48,82 @@ public class Dht22 {
      * @return true if checksum is ok.
      */
     public static boolean chechSum(byte[] value) {
+        return value.length == DATA_LENGTH && checkSum(value, 0);
+    }
+
+    /**
+     * Raw temperature in tenths of degree centigrade.
+     *
+     * @param data buffer with DHT22 data
+     * @param offset offset of DHT22 data in buffer
+     * @return temperature in tenths of degree
+     */
+    public static int rawTemp(byte[] data, int offset) {
+        return (short) (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+    }
 
-        if (value.length != 5) {
+    /**
+     * Raw relative humidity in tenths of %RH.
+     *
+     * @param data buffer with DHT22 data
+     * @param offset offset of DHT22 data in buffer
+     * @return humidity in tenths of %RH
+     */
+    public static int rawHumidity(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+    }
+
+    /**
+     * Check DHT22 checksum of data that is part of larger buffer.
+     *
+     * @param data buffer with DHT22 data
+     * @param offset offset of 5 byte DHT22 data in buffer
+     * @return true if checksum is ok.
+     */
+    public static boolean checkSum(byte[] data, int offset) {
+        if (offset < 0 || offset + DATA_LENGTH > data.length) {
             return false;
         }
-        short sum = 0;
-        for (int i = 0; i < 4; i++ ) {
-            sum += 0xff & value[i];
-        }
-        sum = (short) (0xff & sum);
-        if ((byte) (sum) != value[4]) {
+        int sum = (data[offset] & 0xFF) + (data[offset + 1] & 0xFF)
+                + (data[offset + 2] & 0xFF) + (data[offset + 3] & 0xFF);
+
+        return (byte) sum == data[offset + 4];
+    }
+
+    /**
+     * Decode DHT22 data in place into reading.
+     *
+     * @param data buffer with DHT22 data
+     * @param offset offset of DHT22 data in buffer
+     * @param reading reading to fill, timestamp is not changed
+     * @return true if checksum is ok and reading was filled
+     */
+    public static boolean decode(byte[] data, int offset, Reading reading) {
+        if (!checkSum(data, offset)) {
             return false;
         }
+        reading.setTemp(rawTemp(data, offset));
+        reading.setHmdt(rawHumidity(data, offset));
 
         return true;
     }
 
+    @Override
+    public int getManufacturerId() {
+        return MANUFACTURER_ID;
+    }
+
+    @Override
+    public int getManufacturerDataLength() {
+        return DATA_LENGTH;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, Reading reading) {
+        if (length != DATA_LENGTH || !decode(data, offset, reading)) {
+            return LeEvent.DATA_TYPE_NONE;
+        }
+        return LeEvent.DATA_TYPE_DHT;
+    }
+
 }
@@ -0,0 +1,123 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Implementation of the Bluetooth GATT Environmental Sensing Profile, sensor role.
+ * https://www.bluetooth.com/specifications/adopted-specifications
+ * <p>
+ * Service has temperature, humidity and illuminance characteristic of every sensor, instances
+ * of the same characteristic are told apart by their user description, the sensor name.
+ */
+public class EnvironmentalSensingProfile {
+
+    /* Environmental Sensing Service UUID */
+    public static final UUID ENVIRONMENTAL_SENSING =
+            UUID.fromString("0000181a-0000-1000-8000-00805f9b34fb");
+    /* Temperature Characteristic, sint16 in 0.01 degree Celsius */
+    public static final UUID TEMPERATURE =
+            UUID.fromString("00002a6e-0000-1000-8000-00805f9b34fb");
+    /* Humidity Characteristic, uint16 in 0.01 percent */
+    public static final UUID HUMIDITY =
+            UUID.fromString("00002a6f-0000-1000-8000-00805f9b34fb");
+    /* Illuminance Characteristic, uint24 in 0.01 lux */
+    public static final UUID ILLUMINANCE =
+            UUID.fromString("00002afb-0000-1000-8000-00805f9b34fb");
+    /* Characteristic User Description Descriptor */
+    public static final UUID USER_DESCRIPTION =
+            UUID.fromString("00002901-0000-1000-8000-00805f9b34fb");
+
+    /** Quantities, index of characteristic within sensor */
+    public static final int QUANTITY_TEMPERATURE = 0;
+    public static final int QUANTITY_HUMIDITY = 1;
+    public static final int QUANTITY_ILLUMINANCE = 2;
+    public static final int QUANTITY_COUNT = 3;
+
+    private static final UUID[] QUANTITY_UUIDS = {TEMPERATURE, HUMIDITY, ILLUMINANCE};
+
+    /** Values of quantity not known yet */
+    private static final byte[][] UNKNOWN_VALUES = {
+            {0x00, (byte) 0x80},
+            {(byte) 0xFF, (byte) 0xFF},
+            {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF}};
+
+    /**
+     * Return a configured {@link BluetoothGattService} instance for the Environmental Sensing
+     * Service, characteristic of sensor with index i and quantity q is at position
+     * i * {@link #QUANTITY_COUNT} + q.
+     *
+     * @param names names of sensors, by sensor index
+     */
+    public static BluetoothGattService createEnvironmentalSensingService(String[] names) {
+        BluetoothGattService service = new BluetoothGattService(ENVIRONMENTAL_SENSING,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (String name : names) {
+            byte[] description = name.getBytes(StandardCharsets.UTF_8);
+            for (int quantity = 0; quantity < QUANTITY_COUNT; quantity++) {
+                service.addCharacteristic(createCharacteristic(quantity, description));
+            }
+        }
+        return service;
+    }
+
+    private static BluetoothGattCharacteristic createCharacteristic(int quantity,
+                                                                    byte[] description) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                QUANTITY_UUIDS[quantity],
+                //Read-only characteristic, supports notifications
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        characteristic.setValue(UNKNOWN_VALUES[quantity].clone());
+
+        BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(
+                TimeProfile.CLIENT_CONFIG,
+                //Read/write descriptor
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        characteristic.addDescriptor(configDescriptor);
+
+        BluetoothGattDescriptor descriptionDescriptor = new BluetoothGattDescriptor(
+                USER_DESCRIPTION, BluetoothGattDescriptor.PERMISSION_READ);
+        descriptionDescriptor.setValue(description);
+        characteristic.addDescriptor(descriptionDescriptor);
+        return characteristic;
+    }
+
+    /**
+     * Encode temperature.
+     *
+     * @param tenths temperature in tenths of degree centigrade
+     * @return value of Temperature characteristic
+     */
+    public static byte[] temperature(int tenths) {
+        int value = Math.max(-27315, Math.min(32767, tenths * 10));
+        return new byte[] {(byte) value, (byte) (value >> 8)};
+    }
+
+    /**
+     * Encode relative humidity.
+     *
+     * @param tenths humidity in tenths of %RH
+     * @return value of Humidity characteristic
+     */
+    public static byte[] humidity(int tenths) {
+        int value = Math.max(0, Math.min(10000, tenths * 10));
+        return new byte[] {(byte) value, (byte) (value >> 8)};
+    }
+
+    /**
+     * Encode illuminance.
+     *
+     * @param lux illuminance in lux
+     * @return value of Illuminance characteristic
+     */
+    public static byte[] illuminance(int lux) {
+        int value = (int) Math.max(0, Math.min(0xFFFFFE, lux * 100L));
+        return new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16)};
+    }
+}
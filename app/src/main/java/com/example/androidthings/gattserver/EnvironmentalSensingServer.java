@@ -0,0 +1,588 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GATT server of the gateway, serves latest readings of all sensors in Environmental Sensing
+ * Service, see {@link EnvironmentalSensingProfile}, so nearby centrals read them without cloud.
+ * <p>
+ * Value of characteristic is encoded once per change and shared by reads and notifications of
+ * all centrals. Each central has its own set of enabled notifications, written through
+ * {@link TimeProfile#CLIENT_CONFIG}, and its changed values are flushed at most once per
+ * notification interval, changes made meanwhile are coalesced and the latest value is sent.
+ * Notifications to central are sent one at a time, next one after the stack reported the
+ * previous one as sent.
+ * <p>
+ * Server also hosts Current Time Service, see {@link TimeProfile}, so sensors and centrals
+ * synchronize clock with the gateway. Current time is encoded once per second and notified
+ * to subscribed centrals the same way, cost of the tick does not depend on number of them.
+ * <p>
+ * Server subscribes to {@link EventBus}. GATT callbacks are posted to the handler, all state
+ * is accessed on its thread only.
+ */
+public class EnvironmentalSensingServer implements EventBus.Subscriber {
+
+    private static final String TAG = EnvironmentalSensingServer.class.getSimpleName();
+
+    /** Default minimal time between flushes of notifications to one central */
+    public static final long DEFAULT_NOTIFY_INTERVAL = 1000;
+
+    private final Context context;
+
+    private final BluetoothManager bluetoothManager;
+
+    private final Handler handler;
+
+    private final String[] names;
+
+    private BluetoothGattServer gattServer;
+
+    /** Time service, added after sensing service is added */
+    private BluetoothGattService timeService;
+
+    /**
+     * Characteristics by sensor index * QUANTITY_COUNT + quantity, followed by characteristics
+     * of time service
+     */
+    private BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[0];
+
+    /* Positions of time characteristics */
+    private int currentTimePosition = -1;
+    private int localTimePosition = -1;
+
+    private final TimeEncoder timeEncoder = new TimeEncoder(ZoneId.systemDefault());
+
+    /* Values of time characteristics, encoded in place */
+    private final byte[] currentTime = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+    private final byte[] localTimeInfo = new byte[TimeEncoder.LOCAL_TIME_INFO_LENGTH];
+
+    /** Position of characteristics in {@link #characteristics} */
+    private final Map<BluetoothGattCharacteristic, Integer> positions = new IdentityHashMap<>();
+
+    /** Connected centrals by address */
+    private final Map<String, Central> centrals = new HashMap<>();
+
+    private long notifyInterval = DEFAULT_NOTIFY_INTERVAL;
+
+    /* Metrics */
+    private long notificationCount;
+    private long coalescedCount;
+
+    /**
+     * Connected central and its notification state.
+     */
+    private final class Central implements Runnable {
+
+        private final BluetoothDevice device;
+
+        /** Positions of characteristics with notifications enabled */
+        private final BitSet subscribed = new BitSet();
+
+        /** Positions of characteristics changed since last flush */
+        private final BitSet pending = new BitSet();
+
+        /** Positions of characteristics not yet notified in current flush */
+        private final BitSet sending = new BitSet();
+
+        /** Is notification in flight or send scheduled */
+        private boolean busy;
+
+        /** Start of last flush, elapsed realtime */
+        private long lastFlush;
+
+        private Central(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        /**
+         * Send next notification of current flush, new flush takes all pending values.
+         */
+        @Override
+        public void run() {
+            busy = false;
+            if (gattServer == null) {
+                return;
+            }
+            if (sending.isEmpty()) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                sending.or(pending);
+                pending.clear();
+                lastFlush = SystemClock.elapsedRealtime();
+            }
+            int position = sending.nextSetBit(0);
+            busy = true;
+            if (gattServer.notifyCharacteristicChanged(device, characteristics[position],
+                    false)) {
+                sending.clear(position);
+                notificationCount++;
+            } else {
+                // stack is busy, value stays in flush and is retried after interval
+                Log.w(TAG, "Notification to " + device.getAddress() + " failed.");
+                handler.postDelayed(this, notifyInterval);
+            }
+        }
+
+        /**
+         * Start flush of pending values when interval since the last one passes.
+         */
+        private void schedule() {
+            if (busy || pending.isEmpty()) {
+                return;
+            }
+            busy = true;
+            long delay = lastFlush + notifyInterval - SystemClock.elapsedRealtime();
+            handler.postDelayed(this, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * @param context context
+     * @param bluetoothManager Bluetooth API
+     * @param sensors sensors, indexed by sensor index
+     * @param handler handler of thread on which events and GATT callbacks are handled
+     */
+    public EnvironmentalSensingServer(Context context, BluetoothManager bluetoothManager,
+                                      List<LeSensor> sensors, Handler handler) {
+        this.context = context;
+        this.bluetoothManager = bluetoothManager;
+        this.handler = handler;
+        this.names = new String[sensors.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = sensors.get(i).getName();
+        }
+    }
+
+    /**
+     * Set minimal time between flushes of notifications to one central.
+     *
+     * @param notifyInterval time in milliseconds
+     */
+    public void setNotifyInterval(long notifyInterval) {
+        this.notifyInterval = notifyInterval;
+    }
+
+    /**
+     * Open GATT server and start advertising its service.
+     */
+    public void start() {
+        if (gattServer != null) {
+            return;
+        }
+        gattServer = bluetoothManager.openGattServer(context, mGattServerCallback);
+        if (gattServer == null) {
+            Log.w(TAG, "Unable to create GATT server");
+            return;
+        }
+        BluetoothGattService service =
+                EnvironmentalSensingProfile.createEnvironmentalSensingService(names);
+        timeService = TimeProfile.createTimeService();
+        List<BluetoothGattCharacteristic> list = new ArrayList<>(service.getCharacteristics());
+        int count = list.size();
+        list.addAll(timeService.getCharacteristics());
+        characteristics = list.toArray(new BluetoothGattCharacteristic[list.size()]);
+        positions.clear();
+        for (int i = 0; i < characteristics.length; i++) {
+            positions.put(characteristics[i], i);
+        }
+        currentTimePosition = count;
+        localTimePosition = count + 1;
+        characteristics[currentTimePosition].setValue(currentTime);
+        characteristics[localTimePosition].setValue(localTimeInfo);
+        encodeTime(System.currentTimeMillis());
+        // next service may be added only after this one is
+        gattServer.addService(service);
+        startAdvertising();
+        handler.post(mTimeTicker);
+    }
+
+    /**
+     * Set time zone of served local time, e.g. after the system time zone changed.
+     *
+     * @param zone time zone
+     */
+    public void setZone(ZoneId zone) {
+        timeEncoder.setZone(zone);
+    }
+
+    /**
+     * Encode time into values of time characteristics, arrays of values are shared.
+     */
+    private void encodeTime(long now) {
+        timeEncoder.writeExactTime(now, CurrentTime.ADJUST_NONE, currentTime, 0);
+        timeEncoder.writeLocalTimeInfo(now, localTimeInfo, 0);
+    }
+
+    /**
+     * Encodes current time once per second, at start of the second, and notifies it.
+     */
+    private final Runnable mTimeTicker = new Runnable() {
+        @Override
+        public void run() {
+            if (gattServer == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            encodeTime(now);
+            changed(currentTimePosition);
+            handler.postDelayed(this, 1000 - now % 1000);
+        }
+    };
+
+    /**
+     * Stop advertising and close GATT server.
+     */
+    public void stop() {
+        handler.removeCallbacks(mTimeTicker);
+        stopAdvertising();
+        for (Central central : centrals.values()) {
+            handler.removeCallbacks(central);
+        }
+        centrals.clear();
+        if (gattServer != null) {
+            gattServer.close();
+            gattServer = null;
+        }
+    }
+
+    private void startAdvertising() {
+        BluetoothLeAdvertiser advertiser =
+                bluetoothManager.getAdapter().getBluetoothLeAdvertiser();
+        if (advertiser == null) {
+            Log.w(TAG, "Failed to create advertiser");
+            return;
+        }
+
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
+                .setConnectable(true)
+                .setTimeout(0)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
+                .build();
+
+        AdvertiseData data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .setIncludeTxPowerLevel(false)
+                .addServiceUuid(new ParcelUuid(EnvironmentalSensingProfile.ENVIRONMENTAL_SENSING))
+                .build();
+
+        advertiser.startAdvertising(settings, data, mAdvertiseCallback);
+    }
+
+    private void stopAdvertising() {
+        BluetoothLeAdvertiser advertiser =
+                bluetoothManager.getAdapter().getBluetoothLeAdvertiser();
+        if (advertiser != null) {
+            advertiser.stopAdvertising(mAdvertiseCallback);
+        }
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        int sensorIndex = event.getSensorIndex();
+        if (gattServer == null || sensorIndex < 0 || sensorIndex >= names.length) {
+            return;
+        }
+        switch (event.getType()) {
+            case LeEvent.BROADCAST_DATA_AVAILABLE:
+            case LeEvent.NOTIFICATION_DATA_AVAILABLE:
+            case LeEvent.DATA_AVAILABLE:
+                break;
+            default:
+                return;
+        }
+        int base = sensorIndex * EnvironmentalSensingProfile.QUANTITY_COUNT;
+        switch (event.getDataType()) {
+            case LeEvent.DATA_TYPE_DHT:
+                update(base + EnvironmentalSensingProfile.QUANTITY_TEMPERATURE,
+                        EnvironmentalSensingProfile.temperature(event.getTemp()));
+                update(base + EnvironmentalSensingProfile.QUANTITY_HUMIDITY,
+                        EnvironmentalSensingProfile.humidity(event.getHmdt()));
+                break;
+            case LeEvent.DATA_TYPE_TEMP:
+                update(base + EnvironmentalSensingProfile.QUANTITY_TEMPERATURE,
+                        EnvironmentalSensingProfile.temperature(event.getTemp()));
+                break;
+            case LeEvent.DATA_TYPE_HMDT:
+                update(base + EnvironmentalSensingProfile.QUANTITY_HUMIDITY,
+                        EnvironmentalSensingProfile.humidity(event.getHmdt()));
+                break;
+            case LeEvent.DATA_TYPE_LUX:
+                update(base + EnvironmentalSensingProfile.QUANTITY_ILLUMINANCE,
+                        EnvironmentalSensingProfile.illuminance(event.getLux()));
+                break;
+        }
+    }
+
+    /**
+     * Set new value of characteristic and notify subscribed centrals, unchanged value is not
+     * notified.
+     */
+    private void update(int position, byte[] value) {
+        BluetoothGattCharacteristic characteristic = characteristics[position];
+        if (Arrays.equals(characteristic.getValue(), value)) {
+            return;
+        }
+        characteristic.setValue(value);
+        changed(position);
+    }
+
+    /**
+     * Mark characteristic changed for centrals subscribed to it.
+     */
+    private void changed(int position) {
+        for (Central central : centrals.values()) {
+            if (central.subscribed.get(position) && !central.sending.get(position)) {
+                if (central.pending.get(position)) {
+                    coalescedCount++;
+                }
+                central.pending.set(position);
+                central.schedule();
+            }
+        }
+    }
+
+    public int getCentralCount() {
+        return centrals.size();
+    }
+
+    public long getNotificationCount() {
+        return notificationCount;
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    private void onConnectionStateChange(BluetoothDevice device, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
+            if (!centrals.containsKey(device.getAddress())) {
+                centrals.put(device.getAddress(), new Central(device));
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
+            Central central = centrals.remove(device.getAddress());
+            if (central != null) {
+                handler.removeCallbacks(central);
+            }
+        }
+    }
+
+    private void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                             BluetoothGattCharacteristic characteristic) {
+        if (!positions.containsKey(characteristic)) {
+            Log.w(TAG, "Invalid Characteristic Read: " + characteristic.getUuid());
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            return;
+        }
+        if (offset == 0 && characteristic.getService() == timeService) {
+            encodeTime(System.currentTimeMillis());
+        }
+        respond(device, requestId, offset, characteristic.getValue());
+    }
+
+    private void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                         BluetoothGattDescriptor descriptor) {
+        Integer position = positions.get(descriptor.getCharacteristic());
+        if (position == null) {
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+        } else if (TimeProfile.CLIENT_CONFIG.equals(descriptor.getUuid())) {
+            Central central = centrals.get(device.getAddress());
+            boolean enabled = central != null && central.subscribed.get(position);
+            respond(device, requestId, offset, enabled
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        } else {
+            respond(device, requestId, offset, descriptor.getValue());
+        }
+    }
+
+    private void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                          BluetoothGattDescriptor descriptor,
+                                          boolean responseNeeded, byte[] value) {
+        Integer position = positions.get(descriptor.getCharacteristic());
+        int status = BluetoothGatt.GATT_FAILURE;
+        if (position != null && TimeProfile.CLIENT_CONFIG.equals(descriptor.getUuid())) {
+            Central central = centrals.get(device.getAddress());
+            if (central == null) {
+                central = new Central(device);
+                centrals.put(device.getAddress(), central);
+            }
+            if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
+                Log.d(TAG, "Subscribe device to notifications: " + device);
+                central.subscribed.set(position);
+                status = BluetoothGatt.GATT_SUCCESS;
+            } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
+                Log.d(TAG, "Unsubscribe device from notifications: " + device);
+                central.subscribed.clear(position);
+                central.pending.clear(position);
+                central.sending.clear(position);
+                status = BluetoothGatt.GATT_SUCCESS;
+            }
+        } else {
+            Log.w(TAG, "Unknown descriptor write request");
+        }
+        if (responseNeeded) {
+            gattServer.sendResponse(device, requestId, status, 0, null);
+        }
+    }
+
+    private void onNotificationSent(BluetoothDevice device) {
+        Central central = centrals.get(device.getAddress());
+        if (central != null) {
+            if (central.sending.isEmpty()) {
+                central.busy = false;
+                central.schedule();
+            } else {
+                central.run();
+            }
+        }
+    }
+
+    /**
+     * Send part of value from offset, long values are read in several requests.
+     */
+    private void respond(BluetoothDevice device, int requestId, int offset, byte[] value) {
+        if (value == null || offset > value.length) {
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            return;
+        }
+        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                Arrays.copyOfRange(value, offset, value.length));
+    }
+
+    /**
+     * Callback to receive information about the advertisement process.
+     */
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            Log.i(TAG, "LE Advertise Started.");
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            Log.w(TAG, "LE Advertise Failed: " + errorCode);
+        }
+    };
+
+    /**
+     * Callback to handle incoming requests to the GATT server, called on binder threads and
+     * posted to the handler.
+     */
+    private final BluetoothGattServerCallback mGattServerCallback =
+            new BluetoothGattServerCallback() {
+
+                @Override
+                public void onConnectionStateChange(final BluetoothDevice device, int status,
+                                                    final int newState) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            EnvironmentalSensingServer.this.onConnectionStateChange(device,
+                                    newState);
+                        }
+                    });
+                }
+
+                @Override
+                public void onCharacteristicReadRequest(final BluetoothDevice device,
+                                                        final int requestId, final int offset,
+                                                        final BluetoothGattCharacteristic
+                                                                characteristic) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (gattServer != null) {
+                                EnvironmentalSensingServer.this.onCharacteristicReadRequest(
+                                        device, requestId, offset, characteristic);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDescriptorReadRequest(final BluetoothDevice device,
+                                                    final int requestId, final int offset,
+                                                    final BluetoothGattDescriptor descriptor) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (gattServer != null) {
+                                EnvironmentalSensingServer.this.onDescriptorReadRequest(
+                                        device, requestId, offset, descriptor);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDescriptorWriteRequest(final BluetoothDevice device,
+                                                     final int requestId,
+                                                     final BluetoothGattDescriptor descriptor,
+                                                     boolean preparedWrite,
+                                                     final boolean responseNeeded, int offset,
+                                                     final byte[] value) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (gattServer != null) {
+                                EnvironmentalSensingServer.this.onDescriptorWriteRequest(
+                                        device, requestId, descriptor, responseNeeded, value);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onServiceAdded(int status, final BluetoothGattService service) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (gattServer != null && service != timeService
+                                    && timeService != null) {
+                                gattServer.addService(timeService);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onNotificationSent(final BluetoothDevice device, int status) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            EnvironmentalSensingServer.this.onNotificationSent(device);
+                        }
+                    });
+                }
+            };
+}
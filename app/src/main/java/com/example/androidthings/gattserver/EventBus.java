@@ -0,0 +1,238 @@
+package com.example.androidthings.gattserver;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In process event bus between {@link BluetoothLeService} and its consumers, replacing
+ * broadcast intents that had to go through system server.
+ *
+ * Events are written into preallocated ring of slots, each slot is a row of longs in single
+ * array. Every subscriber has its own cursor into the ring and is notified on its own Handler,
+ * events are copied into subscriber's own {@link LeEvent}, so publishing and delivery do not
+ * allocate. Subscriber that falls behind more than ring capacity loses the oldest events.
+ *
+ * Slot layout: sequence, type and sensor index, timestamp, temperature and humidity,
+ * data type and lux.
+ */
+public class EventBus {
+
+    private static final String TAG = EventBus.class.getSimpleName();
+
+    /** Default number of slots in ring */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int SLOT_SIZE = 5;
+
+    /** Sequence of slot that is being written */
+    private static final long SEQUENCE_WRITING = -1;
+
+    /**
+     * Receives events from bus.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called on subscriber's Handler thread for each event.
+         *
+         * @param event event, valid only during this call
+         */
+        void onEvent(LeEvent event);
+    }
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicLongArray ring;
+
+    /** Sequence of next event */
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param capacity number of slots, has to be power of two
+     */
+    public EventBus(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity has to be power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.ring = new AtomicLongArray(capacity * SLOT_SIZE);
+        for (int i = 0; i < capacity; i++) {
+            ring.set(i * SLOT_SIZE, SEQUENCE_WRITING);
+        }
+    }
+
+    /**
+     * Subscribe for events published after this call.
+     *
+     * @param subscriber subscriber
+     * @param handler handler of thread on which subscriber is called
+     * @return subscription, needed to unsubscribe
+     */
+    public synchronized Subscription subscribe(Subscriber subscriber, Handler handler) {
+        Subscription subscription = new Subscription(subscriber, handler, head.get());
+        Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        updated[updated.length - 1] = subscription;
+        subscriptions = updated;
+
+        return subscription;
+    }
+
+    /**
+     * Stop delivering events to subscriber.
+     *
+     * @param subscription subscription returned by subscribe
+     */
+    public synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] updated = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                break;
+            }
+        }
+        subscription.handler.removeCallbacks(subscription.drainer);
+    }
+
+    /**
+     * Publish event without data.
+     *
+     * @param type event type
+     * @param sensorIndex index of sensor or -1
+     */
+    public void publish(int type, int sensorIndex) {
+        publish(type, sensorIndex, System.currentTimeMillis(), LeEvent.DATA_TYPE_NONE, 0, 0, 0);
+    }
+
+    /**
+     * Publish event, may be called from any thread.
+     *
+     * @param type event type
+     * @param sensorIndex index of sensor or -1
+     * @param timestamp time of event, milliseconds since epoch
+     * @param dataType which values are valid
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     * @param lux illuminance in lux
+     */
+    public void publish(int type, int sensorIndex, long timestamp, int dataType,
+                        int temp, int hmdt, int lux) {
+        long sequence = head.getAndIncrement();
+        int base = (int) (sequence & mask) * SLOT_SIZE;
+
+        // mark slot as being written, so that slow readers of previous lap can detect it
+        ring.set(base, SEQUENCE_WRITING);
+        ring.set(base + 1, ((long) type << 32) | (sensorIndex & 0xFFFFFFFFL));
+        ring.set(base + 2, timestamp);
+        ring.set(base + 3, ((long) temp << 32) | (hmdt & 0xFFFFFFFFL));
+        ring.set(base + 4, ((long) dataType << 32) | (lux & 0xFFFFFFFFL));
+        ring.set(base, sequence);
+
+        for (Subscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Subscriber's position in the ring.
+     */
+    public final class Subscription {
+
+        private final Subscriber subscriber;
+
+        private final Handler handler;
+
+        /** Event reused for every delivery to this subscriber */
+        private final LeEvent event = new LeEvent();
+
+        /** Is drain posted to handler */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /** Sequence of next event to deliver, used only on handler thread */
+        private long next;
+
+        /** Number of events lost because subscriber was too slow */
+        private volatile long dropped;
+
+        private final Runnable drainer = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(Subscriber subscriber, Handler handler, long next) {
+            this.subscriber = subscriber;
+            this.handler = handler;
+            this.next = next;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                handler.post(drainer);
+            }
+        }
+
+        private void drain() {
+            // clear flag first, event published during drain schedules new drain
+            scheduled.set(false);
+            while (true) {
+                long sequence = next;
+                int base = (int) (sequence & mask) * SLOT_SIZE;
+                long slotSequence = ring.get(base);
+                if (slotSequence != sequence) {
+                    if (slotSequence < sequence && head.get() <= sequence + capacity) {
+                        // not published yet, its publisher will schedule new drain
+                        return;
+                    }
+                    skipLapped();
+                    continue;
+                }
+                long header = ring.get(base + 1);
+                long timestamp = ring.get(base + 2);
+                long values = ring.get(base + 3);
+                long data = ring.get(base + 4);
+                if (ring.get(base) != sequence) {
+                    // overwritten while copying
+                    skipLapped();
+                    continue;
+                }
+                next = sequence + 1;
+                event.set((int) (header >> 32), (int) header, timestamp, (int) (data >> 32),
+                        (int) (values >> 32), (int) values, (int) data);
+                subscriber.onEvent(event);
+            }
+        }
+
+        /**
+         * Subscriber was overtaken by publisher, continue with oldest event still in ring.
+         */
+        private void skipLapped() {
+            long oldest = head.get() - capacity + 1;
+            if (oldest > next) {
+                dropped += oldest - next;
+                Log.w(TAG, "Subscriber too slow, dropped " + (oldest - next) + " events.");
+                next = oldest;
+            } else {
+                next++;
+                dropped++;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live stream of readings for local dashboards, as server-sent events. Connections are
+ * accepted by {@link HttpQueryServer} on GET /events.
+ * <pre>
+ * id: 42
+ * event: reading
+ * data: {"deviceId":"DHT-1","timeStampEpoch":1540375330123,...}
+ * </pre>
+ * Each reading is encoded once into frame shared by all clients, see {@link PayloadWriter}.
+ * Every client has bounded queue of frames and own thread that writes them, client whose
+ * queue is full is too slow and is disconnected, so it never delays the others or the
+ * publisher. Idle connections get heartbeat comment, so proxies and browsers keep them open.
+ * <p>
+ * Stream subscribes to {@link EventBus}, {@link #onEvent(LeEvent)} has to be called on
+ * single thread.
+ */
+public class EventStream implements EventBus.Subscriber {
+
+    private static final String TAG = EventStream.class.getSimpleName();
+
+    /** Default maximal number of connected clients */
+    public static final int DEFAULT_MAX_CLIENTS = 32;
+
+    /** Number of frames client may lag behind */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** Period of heartbeat on idle connection */
+    private static final long HEARTBEAT_PERIOD = 15000;
+
+    private static final byte[] RESPONSE_HEAD = ascii("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/event-stream\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "Connection: keep-alive\r\n\r\n");
+
+    private static final byte[] HEARTBEAT = ascii(":\n\n");
+
+    private static final byte[] ID = ascii("id: ");
+
+    private static final byte[] DATA = ascii("\nevent: reading\ndata: ");
+
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<>();
+
+    private final PayloadWriter writer;
+
+    private int maxClients = DEFAULT_MAX_CLIENTS;
+
+    /** Id of next event */
+    private long eventId;
+
+    /* Metrics */
+    private long frameCount;
+    private long droppedClients;
+
+    /**
+     * @param sensors sensors, indexed by sensor index
+     */
+    public EventStream(List<LeSensor> sensors) {
+        writer = new PayloadWriter(sensors, 256);
+    }
+
+    public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        if (!event.isReading()) {
+            return;
+        }
+        if (clients.isEmpty()) {
+            eventId++;
+            return;
+        }
+        writer.reset();
+        writer.write(ID);
+        writer.writeLong(eventId++);
+        writer.write(DATA);
+        writer.writeReading(event.getSensorIndex(), event.getTimestamp(), event.getTemp(),
+                event.getHmdt());
+        writer.writeByte('\n');
+        writer.writeByte('\n');
+        byte[] frame = Arrays.copyOf(writer.buffer(), writer.size());
+        frameCount++;
+        for (Client client : clients) {
+            if (!client.queue.offer(frame)) {
+                clients.remove(client);
+                droppedClients++;
+                Log.w(TAG, "Client " + client.name + " too slow, disconnected.");
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Take over connection that requested the stream, response is written by thread of the
+     * client.
+     *
+     * @param socket connection, closed by stream
+     * @return false if there are too many clients, connection is not taken
+     */
+    public boolean attach(Socket socket) {
+        if (clients.size() >= maxClients) {
+            return false;
+        }
+        Client client = new Client(socket);
+        clients.add(client);
+        client.thread.start();
+        Log.i(TAG, "Client " + client.name + " connected, " + clients.size() + " clients.");
+        return true;
+    }
+
+    /**
+     * Disconnect all clients.
+     */
+    public void close() {
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDroppedClients() {
+        return droppedClients;
+    }
+
+    /**
+     * Connected client with its queue and writer thread.
+     */
+    private final class Client implements Runnable {
+
+        private final Socket socket;
+
+        private final String name;
+
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        private final Thread thread;
+
+        private volatile boolean closed;
+
+        private Client(Socket socket) {
+            this.socket = socket;
+            this.name = String.valueOf(socket.getRemoteSocketAddress());
+            this.thread = new Thread(this, "sse " + name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                out.write(RESPONSE_HEAD);
+                out.flush();
+                while (!closed) {
+                    byte[] frame = queue.poll(HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+                    out.write(frame != null ? frame : HEARTBEAT);
+                    // write frames that queued meanwhile before flushing
+                    while ((frame = queue.poll()) != null) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!closed) {
+                    Log.d(TAG, "Client " + name + " left: " + e.getMessage());
+                }
+            } finally {
+                close();
+                clients.remove(this);
+            }
+        }
+
+        /**
+         * Close connection, it also unblocks thread stuck in write.
+         */
+        private void close() {
+            closed = true;
+            thread.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * GATT session with single remote BLE sensor. Created and owned by
+ * {@link GattConnectionManager}, accessed on its handler thread only.
+ */
+public class GattConnection {
+
+    /** BLE Disconnected */
+    public static final int STATE_DISCONNECTED = 0;
+    /** BLE Connecting */
+    public static final int STATE_CONNECTING = 1;
+    /** BLE Connected, services not yet discovered */
+    public static final int STATE_CONNECTED = 2;
+    /** Services discovered, characteristics may be read and written */
+    public static final int STATE_READY = 3;
+
+    private final LeSensor sensor;
+
+    /** GATT client for communication with GATT server of sensor */
+    private BluetoothGatt gatt;
+
+    private int state = STATE_DISCONNECTED;
+
+    /** Time of last state change, {@link android.os.SystemClock#elapsedRealtime()} based */
+    private long stateTime;
+
+    /** List of services on BLE device, available once connection is ready */
+    private List<BluetoothGattService> services;
+
+    /** Characteristics of all services, indexed by UUID */
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+
+    /** Is GATT client reused from previous session, with services already known */
+    private boolean reused;
+
+    /** Is sensor streaming notifications, such connection is kept open */
+    private boolean streaming;
+
+    /** Operations waiting for current one to complete */
+    private final ArrayDeque<GattOperation> operations = new ArrayDeque<>();
+
+    /** Operation issued and not yet completed */
+    private GattOperation currentOperation;
+
+    public GattConnection(LeSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    public LeSensor getSensor() {
+        return sensor;
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public long getStateTime() {
+        return stateTime;
+    }
+
+    /**
+     * Change state of connection.
+     *
+     * @param state new state
+     * @param now current time, {@link android.os.SystemClock#elapsedRealtime()} based
+     */
+    public void setState(int state, long now) {
+        this.state = state;
+        this.stateTime = now;
+    }
+
+    public boolean isReady() {
+        return state == STATE_READY;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return services;
+    }
+
+    /**
+     * Set discovered services and index their characteristics.
+     *
+     * @param services services of device, or null to forget them
+     */
+    public void setServices(List<BluetoothGattService> services) {
+        this.services = services;
+        characteristics.clear();
+        if (services == null) {
+            return;
+        }
+        for (BluetoothGattService gattService : services) {
+            for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
+                if (!characteristics.containsKey(gattCharacteristic.getUuid())) {
+                    characteristics.put(gattCharacteristic.getUuid(), gattCharacteristic);
+                }
+            }
+        }
+    }
+
+    /**
+     * Are services of device known, either discovered in this session or kept by reused client.
+     */
+    public boolean hasServices() {
+        return !characteristics.isEmpty();
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isReused() {
+        return reused;
+    }
+
+    public void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * Add operation to end of queue, it is issued by {@link GattConnectionManager}.
+     *
+     * @param operation operation to add
+     */
+    void addOperation(GattOperation operation) {
+        operations.add(operation);
+    }
+
+    GattOperation pollOperation() {
+        return operations.poll();
+    }
+
+    GattOperation getCurrentOperation() {
+        return currentOperation;
+    }
+
+    void setCurrentOperation(GattOperation currentOperation) {
+        this.currentOperation = currentOperation;
+    }
+
+    public int getPendingOperationCount() {
+        return operations.size() + (currentOperation != null ? 1 : 0);
+    }
+
+    /**
+     * Get characteristic by its UUID. Before calling this method services have to be
+     * discovered, otherwise index is empty.
+     *
+     * @param charUuid UUID of desired characteristic
+     * @return characteristic or null if not found
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID charUuid) {
+        return characteristics.get(charUuid);
+    }
+}
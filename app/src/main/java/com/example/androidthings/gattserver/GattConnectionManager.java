@@ -0,0 +1,677 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps multiple concurrent GATT sessions, keyed by upper case MAC address.
+ * <p>
+ * At most {@link #getMaxConnections()} sessions are open at once, further requests wait in
+ * FIFO order and get the next free slot. A session that is open longer than
+ * {@link #MAX_SESSION_TIME} while other sensors wait is closed, so one slow sensor cannot keep
+ * the others from being read. Streaming connections are kept open until closed explicitly.
+ * <p>
+ * Each connection has a queue of {@link GattOperation}s. Next operation is issued as soon as
+ * the callback of previous one arrives, so a configure-and-read sequence runs as fast as the
+ * radio allows, and delays between operations are scheduled on the handler instead of blocking.
+ * <p>
+ * Closed session keeps its GATT client and discovered services for a while. When the sensor
+ * is connected again the client is reconnected and, if its {@link GattServiceCache} signature
+ * did not change, service discovery is skipped.
+ * <p>
+ * GATT callbacks are delivered on binder threads, they are posted to the handler and all state
+ * is accessed on the handler thread only.
+ */
+public class GattConnectionManager {
+
+    private static final String TAG = GattConnectionManager.class.getSimpleName();
+
+    /** Android supports up to 7 connected LE devices, keep some for other apps */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /** Connection attempt that takes longer is given up */
+    public static final long CONNECT_TIMEOUT = 20000;
+
+    /** Session that is open longer is closed if other sensors are waiting */
+    public static final long MAX_SESSION_TIME = 30000;
+
+    /** Operation without callback for this long is considered lost and connection is closed */
+    public static final long OPERATION_TIMEOUT = 10000;
+
+    /** Number of disconnected GATT clients kept for reuse */
+    public static final int DEFAULT_MAX_IDLE_CLIENTS = 4;
+
+    /**
+     * Reconnect of reused client is a background connection that may be slow, if it takes
+     * longer a new client is created instead.
+     */
+    public static final long RECONNECT_TIMEOUT = 5000;
+
+    /** Period of checking timeouts of open connections */
+    private static final long WATCHDOG_PERIOD = 1000;
+
+    /**
+     * Receives state changes and data of connections, called on handler thread.
+     */
+    public interface Listener {
+
+        void onConnected(GattConnection connection);
+
+        void onServicesDiscovered(GattConnection connection);
+
+        void onCharacteristicChanged(GattConnection connection, UUID charUuid, byte[] value);
+
+        void onDisconnected(GattConnection connection);
+    }
+
+    private final Context context;
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    private final Handler handler;
+
+    private final Listener listener;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /** Open connections, keyed by upper case MAC address */
+    private final Map<String, GattConnection> connections = new HashMap<>();
+
+    /** Sensors waiting for free connection slot */
+    private final ArrayDeque<LeSensor> waiting = new ArrayDeque<>();
+
+    /** Disconnected connections with GATT client kept for reuse, eldest first */
+    private final LinkedHashMap<String, GattConnection> idle = new LinkedHashMap<>();
+
+    private int maxIdleClients = DEFAULT_MAX_IDLE_CLIENTS;
+
+    /** Signatures of service tables of devices */
+    private final GattServiceCache serviceCache;
+
+    private boolean watchdogScheduled;
+
+    public GattConnectionManager(Context context, BluetoothAdapter bluetoothAdapter,
+                                 Handler handler, Listener listener) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.handler = handler;
+        this.listener = listener;
+        this.serviceCache = new GattServiceCache();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set limit of concurrently open connections, applies to new connections.
+     *
+     * @param maxConnections maximal number of open connections, at least 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections < 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Set number of disconnected GATT clients kept for reuse, 0 closes every client on
+     * disconnect.
+     *
+     * @param maxIdleClients maximal number of idle clients
+     */
+    public void setMaxIdleClients(int maxIdleClients) {
+        this.maxIdleClients = maxIdleClients;
+        trimIdle();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Get open connection of sensor.
+     *
+     * @param sensor sensor
+     * @return connection or null if sensor is not connected
+     */
+    public GattConnection getConnection(LeSensor sensor) {
+        return connections.get(sensor.getMac().toUpperCase());
+    }
+
+    /**
+     * Connect to sensor, or queue the request if all connection slots are used. Connection
+     * result is reported to listener. Sensor that is already connected or waiting is not
+     * queued again.
+     *
+     * @param sensor sensor to connect
+     * @return true if connection is open, initiated or queued
+     */
+    public boolean connect(LeSensor sensor) {
+        if (connections.containsKey(sensor.getMac().toUpperCase()) || waiting.contains(sensor)) {
+            return true;
+        }
+        if (connections.size() >= maxConnections) {
+            waiting.add(sensor);
+            Log.d(TAG, "Connection to " + sensor.getName() + " queued, " + waiting.size()
+                    + " waiting.");
+            return true;
+        }
+        return open(sensor);
+    }
+
+    /**
+     * Close connection of sensor, or remove it from waiting queue. Free slot is given to
+     * the first waiting sensor.
+     *
+     * @param sensor sensor to disconnect
+     */
+    public void close(LeSensor sensor) {
+        GattConnection connection = getConnection(sensor);
+        if (connection != null) {
+            release(connection);
+        } else {
+            waiting.remove(sensor);
+        }
+    }
+
+    /**
+     * Close all connections and forget waiting sensors.
+     */
+    public void closeAll() {
+        waiting.clear();
+        for (GattConnection connection : new ArrayList<>(connections.values())) {
+            release(connection);
+        }
+        for (GattConnection connection : idle.values()) {
+            closeClient(connection);
+        }
+        idle.clear();
+        handler.removeCallbacks(mWatchdog);
+        watchdogScheduled = false;
+    }
+
+    /**
+     * Queue operation on connection of sensor. Operations may be queued right after each
+     * other, each is issued when previous one completes.
+     *
+     * @param sensor connected sensor, its services have to be discovered
+     * @param operation operation to queue
+     * @return future of operation, completed on handler thread
+     */
+    public CompletableFuture<byte[]> submit(LeSensor sensor, GattOperation operation) {
+        GattConnection connection = getConnection(sensor);
+        if (connection == null || !connection.isReady()) {
+            operation.getFuture().completeExceptionally(
+                    new IOException("Sensor " + sensor.getName() + " not connected"));
+        } else {
+            connection.addOperation(operation);
+            next(connection);
+        }
+        return operation.getFuture();
+    }
+
+    /**
+     * Issue next queued operation if no operation is in progress. Operations that can not be
+     * issued fail immediately.
+     */
+    private void next(GattConnection connection) {
+        while (connection.getCurrentOperation() == null && isOpen(connection)) {
+            GattOperation operation = connection.pollOperation();
+            if (operation == null) {
+                return;
+            }
+            connection.setCurrentOperation(operation);
+            operation.setStartTime(SystemClock.elapsedRealtime());
+            String error = start(connection, operation);
+            if (error != null) {
+                connection.setCurrentOperation(null);
+                Log.w(TAG, error + " on " + connection.getSensor().getName());
+                operation.getFuture().completeExceptionally(new IOException(error));
+            }
+        }
+    }
+
+    /**
+     * Issue operation on GATT client.
+     *
+     * @return null if operation was issued, error message otherwise
+     */
+    private String start(final GattConnection connection, final GattOperation operation) {
+        if (operation.getType() == GattOperation.TYPE_DELAY) {
+            handler.postDelayed(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (connection.getCurrentOperation() == operation) {
+                        complete(connection, BluetoothGatt.GATT_SUCCESS, null);
+                    }
+                }
+            }, operation.getDelay());
+            return null;
+        }
+
+        BluetoothGatt gatt = connection.getGatt();
+        BluetoothGattCharacteristic characteristic =
+                connection.getCharacteristic(operation.getCharacteristic());
+        if (characteristic == null) {
+            return "Characteristic " + operation.getCharacteristic() + " not found";
+        }
+        boolean issued;
+        switch (operation.getType()) {
+            case GattOperation.TYPE_WRITE:
+                characteristic.setValue(operation.getValue());
+                issued = gatt.writeCharacteristic(characteristic);
+                break;
+            case GattOperation.TYPE_READ:
+                issued = gatt.readCharacteristic(characteristic);
+                break;
+            case GattOperation.TYPE_NOTIFY:
+            case GattOperation.TYPE_WRITE_DESCRIPTOR:
+                if (operation.getType() == GattOperation.TYPE_NOTIFY
+                        && !gatt.setCharacteristicNotification(characteristic,
+                        operation.isEnable())) {
+                    return "Notification of " + operation.getCharacteristic() + " not set";
+                }
+                BluetoothGattDescriptor descriptor =
+                        characteristic.getDescriptor(operation.getDescriptor());
+                if (descriptor == null) {
+                    return "Descriptor " + operation.getDescriptor() + " not found";
+                }
+                descriptor.setValue(operation.getValue());
+                issued = gatt.writeDescriptor(descriptor);
+                break;
+            default:
+                return "Unknown operation " + operation.getType();
+        }
+        return issued ? null : "Operation " + operation.getType() + " not issued";
+    }
+
+    /**
+     * Complete current operation of connection and issue the next one.
+     *
+     * @param status GATT status of operation
+     * @param value value read or written
+     */
+    private void complete(GattConnection connection, int status, byte[] value) {
+        GattOperation operation = connection.getCurrentOperation();
+        if (operation == null) {
+            return;
+        }
+        connection.setCurrentOperation(null);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            operation.getFuture().complete(value);
+        } else {
+            operation.getFuture().completeExceptionally(
+                    new IOException("GATT operation failed with status " + status));
+        }
+        next(connection);
+    }
+
+    /**
+     * Fail current and queued operations of connection that was closed.
+     */
+    private void failOperations(GattConnection connection) {
+        IOException error = new IOException("Sensor " + connection.getSensor().getName()
+                + " disconnected");
+        GattOperation operation = connection.getCurrentOperation();
+        connection.setCurrentOperation(null);
+        while (operation != null) {
+            operation.getFuture().completeExceptionally(error);
+            operation = connection.pollOperation();
+        }
+    }
+
+    private boolean open(LeSensor sensor) {
+        if (bluetoothAdapter == null || sensor.getMac() == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+        String key = sensor.getMac().toUpperCase();
+
+        GattConnection connection = idle.remove(key);
+        if (connection != null) {
+            connection.setReused(true);
+            connection.setState(GattConnection.STATE_CONNECTING, SystemClock.elapsedRealtime());
+            connections.put(key, connection);
+            if (connection.getGatt().connect()) {
+                Log.d(TAG, "Trying to reuse existing connection to " + sensor.getName() + ".");
+            } else {
+                connections.remove(key);
+                closeClient(connection);
+                connection = null;
+            }
+        }
+
+        if (connection == null) {
+            final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(sensor.getMac());
+            if (device == null) {
+                Log.w(TAG, "Device " + sensor.getName() + " not found. Unable to connect.");
+                return false;
+            }
+            connection = new GattConnection(sensor);
+            connection.setState(GattConnection.STATE_CONNECTING, SystemClock.elapsedRealtime());
+            connections.put(key, connection);
+            connection.setGatt(device.connectGatt(context, false, newCallback(connection)));
+            Log.d(TAG, "Trying to create a new connection to " + sensor.getName() + ".");
+        }
+
+        if (!watchdogScheduled) {
+            watchdogScheduled = true;
+            handler.postDelayed(mWatchdog, WATCHDOG_PERIOD);
+        }
+        return true;
+    }
+
+    /**
+     * Disconnect connection and give its slot to next waiting sensor. GATT client with known
+     * services is kept for reuse, other clients are closed.
+     */
+    private void release(GattConnection connection) {
+        LeSensor sensor = connection.getSensor();
+        String key = sensor.getMac().toUpperCase();
+        if (connections.get(key) != connection) {
+            return;
+        }
+        connections.remove(key);
+        boolean wasOpen = connection.getState() != GattConnection.STATE_DISCONNECTED;
+        connection.setState(GattConnection.STATE_DISCONNECTED, SystemClock.elapsedRealtime());
+        BluetoothGatt gatt = connection.getGatt();
+        if (gatt != null) {
+            gatt.disconnect();
+            if (connection.hasServices() && maxIdleClients > 0) {
+                idle.put(key, connection);
+                trimIdle();
+            } else {
+                closeClient(connection);
+            }
+        }
+        failOperations(connection);
+        connection.setStreaming(false);
+        if (wasOpen) {
+            listener.onDisconnected(connection);
+        }
+
+        while (!waiting.isEmpty() && connections.size() < maxConnections) {
+            open(waiting.poll());
+        }
+    }
+
+    /**
+     * Close eldest idle clients above the limit.
+     */
+    private void trimIdle() {
+        Iterator<GattConnection> iterator = idle.values().iterator();
+        while (idle.size() > maxIdleClients && iterator.hasNext()) {
+            closeClient(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private void closeClient(GattConnection connection) {
+        BluetoothGatt gatt = connection.getGatt();
+        if (gatt != null) {
+            gatt.close();
+            connection.setGatt(null);
+        }
+        connection.setServices(null);
+    }
+
+    /**
+     * Make connection ready. Firmware revision is read, if the device has it, and signature
+     * of service table is compared with stored one. Reused client with changed signature
+     * discovers services again.
+     *
+     * @param connection connection with known services
+     */
+    private void verifyServices(final GattConnection connection) {
+        connection.setState(GattConnection.STATE_READY, SystemClock.elapsedRealtime());
+        if (connection.getCharacteristic(GattServiceCache.FIRMWARE_REVISION) == null) {
+            servicesVerified(connection, null);
+            return;
+        }
+        GattOperation operation = GattOperation.read(GattServiceCache.FIRMWARE_REVISION);
+        connection.addOperation(operation);
+        next(connection);
+        operation.getFuture().whenComplete(new BiConsumer<byte[], Throwable>() {
+
+            @Override
+            public void accept(byte[] firmware, Throwable throwable) {
+                if (isOpen(connection)) {
+                    servicesVerified(connection, firmware);
+                }
+            }
+        });
+    }
+
+    private void servicesVerified(GattConnection connection, byte[] firmware) {
+        String mac = connection.getSensor().getMac();
+        String signature = GattServiceCache.signature(firmware, connection.getServices());
+        if (connection.isReused() && !signature.equals(serviceCache.getSignature(mac))) {
+            Log.i(TAG, "Services of " + connection.getSensor().getName() + " changed.");
+            connection.setReused(false);
+            connection.setServices(null);
+            connection.setState(GattConnection.STATE_CONNECTED, SystemClock.elapsedRealtime());
+            if (!connection.getGatt().discoverServices()) {
+                Log.w(TAG, "Unable to start service discovery.");
+                release(connection);
+            }
+            return;
+        }
+        serviceCache.putSignature(mac, signature);
+        listener.onServicesDiscovered(connection);
+    }
+
+    /**
+     * Gives up connections that take too long to establish, and sessions that hold a slot
+     * for too long while other sensors wait.
+     */
+    private final Runnable mWatchdog = new Runnable() {
+
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            List<GattConnection> expired = null;
+            for (GattConnection connection : connections.values()) {
+                long age = now - connection.getStateTime();
+                boolean connecting = connection.getState() == GattConnection.STATE_CONNECTING;
+                GattOperation operation = connection.getCurrentOperation();
+                boolean operationLost = operation != null && operation.isRemote()
+                        && now - operation.getStartTime() >= OPERATION_TIMEOUT;
+                long connectTimeout = connection.isReused() ? RECONNECT_TIMEOUT : CONNECT_TIMEOUT;
+                if ((connecting && age >= connectTimeout) || operationLost
+                        || (!connecting && !connection.isStreaming() && !waiting.isEmpty()
+                        && age >= MAX_SESSION_TIME)) {
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(connection);
+                }
+            }
+            if (expired != null) {
+                for (GattConnection connection : expired) {
+                    if (connection.isReused()
+                            && connection.getState() == GattConnection.STATE_CONNECTING) {
+                        // Retry with new client and direct connection
+                        Log.d(TAG, "Reconnect to " + connection.getSensor().getName()
+                                + " is slow.");
+                        LeSensor sensor = connection.getSensor();
+                        connections.remove(sensor.getMac().toUpperCase());
+                        closeClient(connection);
+                        open(sensor);
+                        continue;
+                    }
+                    Log.w(TAG, "Connection to " + connection.getSensor().getName()
+                            + " timed out.");
+                    release(connection);
+                }
+            }
+            if (connections.isEmpty()) {
+                watchdogScheduled = false;
+            } else {
+                handler.postDelayed(this, WATCHDOG_PERIOD);
+            }
+        }
+    };
+
+    /**
+     * Create GATT callback bound to single connection. Callback methods are called on binder
+     * thread and posted to handler thread. Events of connection that was already released are
+     * ignored.
+     */
+    private BluetoothGattCallback newCallback(final GattConnection connection) {
+
+        return new BluetoothGattCallback() {
+
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status,
+                                                final int newState) {
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!isOpen(connection)) {
+                            return;
+                        }
+                        if (newState == BluetoothProfile.STATE_CONNECTED) {
+                            connection.setState(GattConnection.STATE_CONNECTED,
+                                    SystemClock.elapsedRealtime());
+                            Log.i(TAG, "Connected to GATT server of "
+                                    + connection.getSensor().getName() + ".");
+                            listener.onConnected(connection);
+                            if (connection.hasServices()) {
+                                verifyServices(connection);
+                            } else if (!connection.getGatt().discoverServices()) {
+                                Log.w(TAG, "Unable to start service discovery.");
+                                release(connection);
+                            }
+                        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                            if (connection.isReused()
+                                    && connection.getState() == GattConnection.STATE_CONNECTING) {
+                                // Late event of previous session, reconnect is pending
+                                return;
+                            }
+                            Log.i(TAG, "Disconnected from GATT server of "
+                                    + connection.getSensor().getName() + ".");
+                            release(connection);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!isOpen(connection)) {
+                            return;
+                        }
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            connection.setServices(connection.getGatt().getServices());
+                            verifyServices(connection);
+                        } else {
+                            Log.w(TAG, "onServicesDiscovered received: " + status);
+                            release(connection);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt,
+                                             final BluetoothGattCharacteristic characteristic,
+                                             final int status) {
+                final byte[] value = characteristic.getValue();
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (isOpen(connection)) {
+                            complete(connection, status, value);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic characteristic,
+                                              final int status) {
+                final byte[] value = characteristic.getValue();
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (isOpen(connection)) {
+                            complete(connection, status, value);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                          final int status) {
+                final byte[] value = descriptor.getValue();
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (isOpen(connection)) {
+                            complete(connection, status, value);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                BluetoothGattCharacteristic characteristic) {
+                // Value is replaced by next notification, take it on binder thread
+                final UUID charUuid = characteristic.getUuid();
+                final byte[] value = characteristic.getValue();
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (isOpen(connection)) {
+                            listener.onCharacteristicChanged(connection, charUuid, value);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private boolean isOpen(GattConnection connection) {
+        return connections.get(connection.getSensor().getMac().toUpperCase()) == connection;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Single operation in queue of {@link GattConnection}. Android allows only one outstanding
+ * GATT operation per connection, so operations are issued one by one, each after the callback
+ * of previous one.
+ * <p>
+ * Future is completed with characteristic or descriptor value on handler thread, or
+ * exceptionally if the operation could not be done.
+ */
+public class GattOperation {
+
+    /** Write characteristic value */
+    public static final int TYPE_WRITE = 0;
+    /** Read characteristic value */
+    public static final int TYPE_READ = 1;
+    /** Enable or disable local notifications and write client configuration descriptor */
+    public static final int TYPE_NOTIFY = 2;
+    /** Write descriptor value */
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    /** Wait before next operation, without blocking any thread */
+    public static final int TYPE_DELAY = 4;
+
+    private final int type;
+
+    private final UUID characteristic;
+
+    private final UUID descriptor;
+
+    private final byte[] value;
+
+    private final long delay;
+
+    private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+    /** Time operation was issued, {@link android.os.SystemClock#elapsedRealtime()} based */
+    private long startTime;
+
+    private GattOperation(int type, UUID characteristic, UUID descriptor, byte[] value,
+                          long delay) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+        this.value = value;
+        this.delay = delay;
+    }
+
+    public static GattOperation write(UUID characteristic, byte[] value) {
+        return new GattOperation(TYPE_WRITE, characteristic, null, value, 0);
+    }
+
+    public static GattOperation read(UUID characteristic) {
+        return new GattOperation(TYPE_READ, characteristic, null, null, 0);
+    }
+
+    /**
+     * Enable or disable notifications of characteristic, both locally and on remote device
+     * through its {@link TimeProfile#CLIENT_CONFIG} descriptor.
+     */
+    public static GattOperation notify(UUID characteristic, boolean enable) {
+        return new GattOperation(TYPE_NOTIFY, characteristic, TimeProfile.CLIENT_CONFIG,
+                enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                        : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, 0);
+    }
+
+    public static GattOperation writeDescriptor(UUID characteristic, UUID descriptor,
+                                                byte[] value) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, characteristic, descriptor, value, 0);
+    }
+
+    public static GattOperation delay(long delay) {
+        return new GattOperation(TYPE_DELAY, null, null, null, delay);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    public UUID getDescriptor() {
+        return descriptor;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Is notification enabled by {@link #TYPE_NOTIFY} operation.
+     */
+    public boolean isEnable() {
+        return value != null && value.length > 0 && value[0] != 0;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public CompletableFuture<byte[]> getFuture() {
+        return future;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * Does completion of operation arrive by GATT callback.
+     */
+    public boolean isRemote() {
+        return type != TYPE_DELAY;
+    }
+}
@@ -19,6 +19,7 @@ package com.example.androidthings.gattserver;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -28,24 +29,89 @@ import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.WindowManager;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 public class GattServerActivity extends Activity {
     private static final String TAG = GattServerActivity.class.getSimpleName();
 
-    private static final int READ_PERIOD = 60000;
+    /** Period of checking that continuous scan is running */
+    private static final int SCAN_WATCHDOG_PERIOD = 60000;
 
+    /**
+     * Scan mode of continuous scan, sensors advertise several times per second so low power
+     * scan windows still catch them
+     */
+    private static final int SCAN_MODE = ScanSettings.SCAN_MODE_LOW_POWER;
+
+    /** Scan results are batched by controller and delivered at most this late */
+    private static final long SCAN_REPORT_DELAY = 5000;
+
+    /** Time for SensorTag sensor to stabilize after it is turned on */
+    private static final long SENSOR_STABILIZE_TIME = 1000;
+
+    /**
+     * Refresh period of streaming GATT sensors, they stay connected and notify each reading.
+     * 0 connects and reads GATT sensors once per their period instead.
+     */
+    private static final long GATT_STREAM_PERIOD = 1000;
+
+    /** Encoding of readings sent to AWS IoT */
+    private static final int UPLINK_ENCODING = BatchPublisher.ENCODING_JSON;
+
+    /** Temperature change reported to cloud, in tenths of degree centigrade */
+    private static final int REPORT_TEMP_DEADBAND = 2;
+
+    /** Humidity change reported to cloud, in tenths of %RH */
+    private static final int REPORT_HMDT_DEADBAND = 10;
+
+    /** Unchanged sensor is reported at least this often */
+    private static final long REPORT_MAX_SILENCE = 15 * 60 * 1000;
+
+    /** Length of window summarized for cloud */
+    private static final long SUMMARY_WINDOW = 15 * 60 * 1000;
+
+    /** Period of window summaries, window slides by this time */
+    private static final long SUMMARY_SLIDE = 5 * 60 * 1000;
+
+    /** File name of journal of readings not yet published */
+    private static final String JOURNAL_NAME = "readings.journal";
+
+    /** File name of compressed long term history */
+    private static final String ARCHIVE_NAME = "history.archive";
+
+    /** Port of local query API, served on loopback only */
+    private static final int HTTP_PORT = HttpQueryServer.DEFAULT_PORT;
+
+    /** Main thread handler, for UI updates and scheduling of reads */
     Handler mReadHandler;
 
+    /**
+     * Thread that batches, serializes and publishes readings, so MQTT and journal I/O never
+     * delay UI or reading of sensors
+     */
+    private HandlerThread mUplinkThread;
+
+    private Handler mUplinkHandler;
+
+    /** Thread of GATT server, serves centrals independently of uplink */
+    private HandlerThread mGattServerThread;
+
+    private Handler mGattServerHandler;
+
     /* Local UI */
     private TextView mLocalTimeView;
     private TextView mAdapterAddress;
@@ -58,54 +124,151 @@ public class GattServerActivity extends Activity {
     private AwsIot awsIot;
 
     /**
-     * Is scanning of LE device in progress
+     * Service responsible for BLE communication with remote BLE devices
      */
-    private boolean mIsScanning;
+    private volatile BluetoothLeService mBluetoothLeService;
 
     /**
-     * Current sensor
+     * List of LE sensors
      */
-    private int mCurrentSensorIdx;
+    private List<LeSensor> sensors = new ArrayList<LeSensor>() {
+        {
+            // read every 5 minutes, every minute while readings change, before other sensors
+            LeSensor dht = new LeSensor("DHT-1", "CF:37:9A:3A:5B:01");
+            dht.setPeriod(5 * 60 * 1000);
+            dht.setMinPeriod(60 * 1000);
+            dht.setPriority(1);
+            add(dht);
+//            add(new LeSensor("ST-1", "B0:B4:48:ED:C8:83", LeSensor.TYPE_GATT));
+//            add(new LeSensor("ST-2", "24:71:89:08:BD:82", LeSensor.TYPE_GATT));
+        }
+    };
 
     /**
-     * Service responsible for BLE communication with remote BLE devices
+     * Readings waiting to be published
      */
-    private BluetoothLeService mBluetoothLeService;
+    private ReadingJournal mReadingJournal;
 
     /**
-     * List of LE sensors
+     * Long term history of readings
      */
-    private List<LeSensor> sensors = new ArrayList<LeSensor>() {
-        {
-            add(new LeSensor("DHT-1", "CF:37:9A:3A:5B:01"));
-//            add(new LeSensor("ST-1", "B0:B4:48:ED:C8:83"));
-//            add(new LeSensor("ST-2", "24:71:89:08:BD:82"));
+    private HistoryArchive mHistoryArchive;
+
+    /**
+     * Hourly aggregates of readings, for long range queries
+     */
+    private ReadingRollup mReadingRollup;
+
+    /**
+     * Local query API
+     */
+    private HttpQueryServer mHttpServer;
+
+    /**
+     * Live stream of readings served by HTTP server
+     */
+    private EventStream mEventStream;
+
+    /**
+     * Publishes readings to AWS IoT in batches
+     */
+    private BatchPublisher mBatchPublisher;
+
+    /**
+     * Publishes window summaries of readings
+     */
+    private WindowAggregator mWindowAggregator;
+
+    /**
+     * Serves readings to nearby centrals over Environmental Sensing Service
+     */
+    private EnvironmentalSensingServer mSensingServer;
+
+    /**
+     * Subscriptions to events of BluetoothLeService
+     */
+    private EventBus.Subscription mBluetoothLeSubscription;
+    private EventBus.Subscription mCloudSubscription;
+    private EventBus.Subscription mSummarySubscription;
+    private EventBus.Subscription mArchiveSubscription;
+    private EventBus.Subscription mRollupSubscription;
+    private EventBus.Subscription mStreamSubscription;
+    private EventBus.Subscription mSensingSubscription;
+
+    /**
+     * History of readings of all sensors
+     */
+    private ReadingStore mReadingStore;
+
+    /**
+     * Schedules readings of sensors by their deadlines
+     */
+    private ReadScheduler mReadScheduler;
+
+    /** Sensors expedited since their last reading, by sensor index, used on main thread */
+    private boolean[] mRetried;
+
+    /**
+     * Previous polled readings, by sensor index, used on main thread to adapt read periods.
+     * Reading of sensor itself is written by the service.
+     */
+    private Reading[] mPolledReadings;
+
+    /**
+     * Connects GATT sensor when it is due, polled sensor is read and closed, streaming
+     * sensor that lost connection is reconnected.
+     */
+    private final ReadScheduler.Callback mReadCallback = new ReadScheduler.Callback() {
+
+        @Override
+        public void onReadDue(LeSensor sensor) {
+            if (mBluetoothLeService != null) {
+                mBluetoothLeService.connect(sensor);
+            }
         }
     };
 
     /**
-     * Circular cycle through sensor list.
+     * Read sensor again as soon as possible after its reading failed or its connection was
+     * lost. Sensor is expedited once until it is read, so sensor that stays unreachable is
+     * retried at its period. Called on main thread.
      *
-     * @return next sensor in the list
+     * @param sensor sensor to read again
      */
-    private LeSensor nextSensor() {
-        if (mCurrentSensorIdx >= (sensors.size() - 1)) {
-            mCurrentSensorIdx = 0;
-        } else {
-            mCurrentSensorIdx++;
+    private void retry(LeSensor sensor) {
+        if (!mRetried[sensor.getIndex()]) {
+            mRetried[sensor.getIndex()] = true;
+            mReadScheduler.expedite(sensor);
         }
-
-        return sensors.get(mCurrentSensorIdx);
     }
 
     /**
-     * Currently queried sensor.
+     * Create handler of failed GATT operation, that closes connection of sensor and reads it
+     * again, see {@link #retry(LeSensor)}.
      *
-     * @return currently selected sensor
+     * @param sensor sensor the operation was issued on
+     * @return function to pass to {@link CompletableFuture#exceptionally(Function)}
      */
-    private LeSensor currentSensor() {
-
-        return sensors.get(mCurrentSensorIdx);
+    private Function<Throwable, byte[]> closeOnError(final LeSensor sensor) {
+        return new Function<Throwable, byte[]>() {
+
+            @Override
+            public byte[] apply(Throwable throwable) {
+                Log.w(TAG, "Reading " + sensor.getName() + " failed: " + throwable.getMessage());
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.close(sensor);
+                }
+                // operations complete on GATT thread
+                mReadHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        retry(sensor);
+                    }
+                });
+                return null;
+            }
+        };
     }
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -116,7 +279,24 @@ public class GattServerActivity extends Activity {
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
+                return;
             }
+            EventBus eventBus = mBluetoothLeService.getEventBus();
+            mBluetoothLeSubscription = eventBus.subscribe(mBluetoothLeSubscriber, mReadHandler);
+            mCloudSubscription = eventBus.subscribe(mBatchPublisher, mUplinkHandler);
+            mSummarySubscription = eventBus.subscribe(mWindowAggregator, mUplinkHandler);
+            if (mHistoryArchive != null) {
+                mArchiveSubscription = eventBus.subscribe(mHistoryArchive, mUplinkHandler);
+            }
+            mRollupSubscription = eventBus.subscribe(mReadingRollup, mUplinkHandler);
+            mStreamSubscription = eventBus.subscribe(mEventStream, mUplinkHandler);
+            mSensingSubscription = eventBus.subscribe(mSensingServer, mGattServerHandler);
+            mBluetoothLeService.setReadingStore(mReadingStore);
+            mReadScheduler.start();
+            mBluetoothLeService.setScanMode(SCAN_MODE);
+            mBluetoothLeService.setReportDelay(SCAN_REPORT_DELAY);
+            mBluetoothLeService.startContinuousScan(sensors);
+            mAdapterAddress.setText("Scanning " + sensors.size() + " sensors");
         }
 
         @Override
@@ -126,21 +306,21 @@ public class GattServerActivity extends Activity {
     };
 
     /**
-     * ReOccurring event of scanning and reading sensors.
+     * ReOccurring check of continuous scan.
      * <p>
-     * It reoccurs each READ_PERIOD.
+     * Broadcasting sensors are read by single continuous scan, this watchdog reoccurs each
+     * SCAN_WATCHDOG_PERIOD and starts the scan again if it was stopped. GATT sensors are
+     * read by {@link ReadScheduler}.
      */
     private Runnable reader = new Runnable() {
         @Override
         public void run() {
             Log.i(TAG, "Read handler started.");
-            if ((mBluetoothLeService != null) && (!mIsScanning)) {
-                mIsScanning = true;
-                LeSensor currentSensor = nextSensor();
-                mBluetoothLeService.scanLeDevice(true, currentSensor.getMac());
-                mAdapterAddress.setText("Scanning for " + currentSensor.getName());
+            if ((mBluetoothLeService != null) && (!mBluetoothLeService.isContinuousScanning())) {
+                mBluetoothLeService.startContinuousScan(sensors);
+                mAdapterAddress.setText("Scanning " + sensors.size() + " sensors");
             }
-            mReadHandler.postDelayed(this, READ_PERIOD);
+            mReadHandler.postDelayed(this, SCAN_WATCHDOG_PERIOD);
         }
     };
 
@@ -149,7 +329,71 @@ public class GattServerActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_server);
 
+        for (int i = 0; i < sensors.size(); i++) {
+            sensors.get(i).setIndex(i);
+        }
+        mReadingStore = new ReadingStore(sensors.size(), ReadingStore.DEFAULT_CAPACITY);
+
+        mReadHandler = new Handler();
+        mReadScheduler = new ReadScheduler(sensors, mReadHandler, mReadCallback);
+        mRetried = new boolean[sensors.size()];
+        mPolledReadings = new Reading[sensors.size()];
+        for (int i = 0; i < mPolledReadings.length; i++) {
+            mPolledReadings[i] = new Reading();
+        }
+        try {
+            mReadingJournal = new ReadingJournal(new File(getFilesDir(), JOURNAL_NAME),
+                    ReadingJournal.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open reading journal", e);
+            finish();
+            return;
+        }
+        try {
+            mHistoryArchive = new HistoryArchive(new File(getFilesDir(), ARCHIVE_NAME),
+                    sensors.size(), HistoryBlockWriter.DEFAULT_BLOCK_SIZE);
+        } catch (IOException e) {
+            // gateway runs without local history, raw readings are not served
+            Log.e(TAG, "Unable to open history archive", e);
+        }
+
+        mUplinkThread = new HandlerThread("uplink");
+        mUplinkThread.start();
+        mUplinkHandler = new Handler(mUplinkThread.getLooper());
+
         awsIot = new AwsIot(this);
+        mBatchPublisher = new BatchPublisher(awsIot, mReadingJournal, sensors, mUplinkHandler);
+        mBatchPublisher.setEncoding(UPLINK_ENCODING);
+        ReportingFilter reportingFilter = new ReportingFilter(sensors.size());
+        reportingFilter.setDeadband(REPORT_TEMP_DEADBAND, REPORT_HMDT_DEADBAND);
+        reportingFilter.setMaxSilence(REPORT_MAX_SILENCE);
+        mBatchPublisher.setReportingFilter(reportingFilter);
+        mWindowAggregator = new WindowAggregator(awsIot, sensors, mUplinkHandler,
+                SUMMARY_WINDOW, SUMMARY_SLIDE);
+        mReadingRollup = new ReadingRollup(sensors.size(), ReadingRollup.DEFAULT_BUCKET,
+                ReadingRollup.DEFAULT_CAPACITY);
+        mHttpServer = new HttpQueryServer(sensors, mReadingStore, mHistoryArchive,
+                mReadingRollup);
+        mHttpServer.setPort(HTTP_PORT);
+        mEventStream = new EventStream(sensors);
+        mHttpServer.setEventStream(mEventStream);
+        mUplinkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWindowAggregator.start();
+                // events are delivered on this thread after load, no reading is counted twice
+                if (mHistoryArchive != null) {
+                    long now = System.currentTimeMillis();
+                    mReadingRollup.load(mHistoryArchive, now - ReadingRollup.DEFAULT_CAPACITY
+                            * ReadingRollup.DEFAULT_BUCKET, now);
+                }
+                try {
+                    mHttpServer.start();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to start HTTP server", e);
+                }
+            }
+        });
         awsIot.connect();
 
         mLocalTimeView = (TextView) findViewById(R.id.text_time);
@@ -166,26 +410,34 @@ public class GattServerActivity extends Activity {
             finish();
         }
 
+        mGattServerThread = new HandlerThread("gatt-server");
+        mGattServerThread.start();
+        mGattServerHandler = new Handler(mGattServerThread.getLooper());
+        mSensingServer = new EnvironmentalSensingServer(this, mBluetoothManager, sensors,
+                mGattServerHandler);
+
         // Register for system Bluetooth events
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBluetoothReceiver, filter);
 
+        // Register for system clock events
+        IntentFilter timeFilter = new IntentFilter();
+        timeFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(mTimeReceiver, timeFilter);
+
         if (!bluetoothAdapter.isEnabled()) {
             Log.d(TAG, "Bluetooth is currently disabled...enabling");
             bluetoothAdapter.enable();
         } else {
             Log.d(TAG, "Bluetooth enabled");
 //            scanLeDevice(true);
+            startServer();
         }
 
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
-        // Register for custom BLE service events
-        registerReceiver(mBluetoothLeReceiver, makeBluetoothLeUpdateIntentFilter());
-
-        mReadHandler = new Handler();
-        mReadHandler.postDelayed(reader, READ_PERIOD);
+        mReadHandler.postDelayed(reader, SCAN_WATCHDOG_PERIOD);
     }
 
     @Override
@@ -202,8 +454,50 @@ public class GattServerActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        awsIot.disconnect();
-        unregisterReceiver(mBluetoothReceiver);
+        mReadHandler.removeCallbacks(reader);
+        if (mReadScheduler != null) {
+            mReadScheduler.stop();
+        }
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.stopContinuousScan();
+            mBluetoothLeService.close();
+            mBluetoothLeService.getEventBus().unsubscribe(mBluetoothLeSubscription);
+            mBluetoothLeService.getEventBus().unsubscribe(mCloudSubscription);
+            mBluetoothLeService.getEventBus().unsubscribe(mSummarySubscription);
+            if (mArchiveSubscription != null) {
+                mBluetoothLeService.getEventBus().unsubscribe(mArchiveSubscription);
+            }
+            mBluetoothLeService.getEventBus().unsubscribe(mRollupSubscription);
+            mBluetoothLeService.getEventBus().unsubscribe(mStreamSubscription);
+            mBluetoothLeService.getEventBus().unsubscribe(mSensingSubscription);
+            Log.i(TAG, "Events dropped by UI " + mBluetoothLeSubscription.getDropped()
+                    + ", by uplink " + mCloudSubscription.getDropped());
+        }
+        if (mBatchPublisher != null) {
+            // publisher is confined to uplink thread, flush there after its pending work
+            mUplinkHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHttpServer.stop();
+                    mEventStream.close();
+                    mWindowAggregator.stop();
+                    mBatchPublisher.flush();
+                    mReadingJournal.force();
+                    if (mHistoryArchive != null) {
+                        mHistoryArchive.close();
+                    }
+                    awsIot.disconnect();
+                }
+            });
+            mUplinkThread.quitSafely();
+        }
+        if (mSensingServer != null) {
+            stopServer();
+            mGattServerThread.quitSafely();
+            // receivers are registered along with the server
+            unregisterReceiver(mBluetoothReceiver);
+            unregisterReceiver(mTimeReceiver);
+        }
     }
 
     /**
@@ -238,10 +532,10 @@ public class GattServerActivity extends Activity {
 
             switch (state) {
                 case BluetoothAdapter.STATE_ON:
-//                    startServer();
+                    startServer();
                     break;
                 case BluetoothAdapter.STATE_OFF:
-//                    stopServer();
+                    stopServer();
                     break;
                 default:
                     // Do nothing
@@ -250,6 +544,48 @@ public class GattServerActivity extends Activity {
         }
     };
 
+    /**
+     * Listens for system time zone changes, served local time follows the new zone.
+     */
+    private BroadcastReceiver mTimeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final ZoneId zone = ZoneId.systemDefault();
+            mGattServerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSensingServer.setZone(zone);
+                }
+            });
+        }
+    };
+
+    /**
+     * Open GATT server and start advertising, on thread of the server.
+     */
+    private void startServer() {
+        mGattServerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSensingServer.start();
+            }
+        });
+    }
+
+    /**
+     * Stop advertising and close GATT server, on thread of the server.
+     */
+    private void stopServer() {
+        mGattServerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "GATT server sent " + mSensingServer.getNotificationCount()
+                        + " notifications, coalesced " + mSensingServer.getCoalescedCount());
+                mSensingServer.stop();
+            }
+        });
+    }
+
     /**
      * Update graphical UI on devices that support it.
      */
@@ -266,100 +602,101 @@ public class GattServerActivity extends Activity {
     /**
      * Handles events by BluetoothLeService
      */
-    private final BroadcastReceiver mBluetoothLeReceiver = new BroadcastReceiver() {
+    private final EventBus.Subscriber mBluetoothLeSubscriber = new EventBus.Subscriber() {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                Log.i(TAG, "Device discovered and connected.");
-                mAdapterAddress.setText("Connected " + currentSensor().getName());
-                mIsScanning = false;
-            } else if (BluetoothLeService.ACTION_SCAN_FINISHED.equals(action)) {
-                Log.i(TAG, "Device scan finished.");
-                mIsScanning = false;
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                Log.i(TAG, "Device disconnected.");
-                mIsScanning = false;
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                Log.i(TAG, "Services discovered.");
-                mBluetoothLeService.turnOnCharacteristics(HTSensor.HT_CONF);
-//                mBluetoothLeService.turnOnCharacteristics(OpticalSensor.OPTICAL_CONF);
-                // Wait for sensor to stabilize
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-//                mBluetoothLeService.readCharacteristic(OpticalSensor.OPTICAL_DATA);
-                mBluetoothLeService.readCharacteristic(HTSensor.HT_DATA);
-                mAdapterAddress.setText("Reading " + currentSensor().getName());
-                mIsScanning = false;
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                Log.i(TAG, "Action GATT Data Available");
-                String dataType = intent.getStringExtra(BluetoothLeService.DATA_TYPE);
-                String strVal = "NA";
-                switch (dataType) {
-                    case BluetoothLeService.DATA_TYPE_LUX:
-                        double lux = intent.getDoubleExtra(BluetoothLeService.EXTRA_DATA, 0.0d);
-                        strVal = String.valueOf(lux) + " [lux]";
-                        break;
-                    case BluetoothLeService.DATA_TYPE_HMDT:
-                        double humidity = intent.getDoubleExtra(BluetoothLeService.EXTRA_DATA, 0.0d);
-                        strVal = String.valueOf(humidity) + " [%RH]";
-                        break;
-                    case BluetoothLeService.DATA_TYPE_TEMP:
-                        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"));
-                        double temp = intent.getDoubleExtra(BluetoothLeService.EXTRA_DATA, 0.0d);
-                        strVal = "{\"sensor_name\":\"" + currentSensor().getName() + "\"" +
-                                 ",\"sensor_type\":\"temperature\"" +
-                                 ",\"timestamp\": \"" + timestamp + "\"" +
-                                 ",\"value\":\"" + String.valueOf(temp) + "\"}";
-                        Log.i(TAG, strVal);
-//                        awsIot.publish("myTopic/1", strVal);
+        public void onEvent(LeEvent event) {
+            LeSensor sensor = event.getSensorIndex() >= 0
+                    ? sensors.get(event.getSensorIndex()) : null;
+            switch (event.getType()) {
+                case LeEvent.GATT_CONNECTED:
+                    Log.i(TAG, "Device discovered and connected.");
+                    mAdapterAddress.setText("Connected " + sensor.getName());
+                    break;
+                case LeEvent.SCAN_FINISHED:
+                    Log.i(TAG, "Device scan finished.");
+                    break;
+                case LeEvent.GATT_DISCONNECTED:
+                    Log.i(TAG, "Device " + sensor.getName() + " disconnected.");
+                    // streaming sensor is closed only on error, polled one after each reading
+                    if (GATT_STREAM_PERIOD > 0) {
+                        retry(sensor);
+                    }
+                    break;
+                case LeEvent.GATT_SERVICES_DISCOVERED:
+                    Log.i(TAG, "Services discovered.");
+                    if (GATT_STREAM_PERIOD > 0) {
+                        mBluetoothLeService.startStreaming(sensor, GATT_STREAM_PERIOD)
+                                .exceptionally(closeOnError(sensor));
+                        mAdapterAddress.setText("Streaming " + sensor.getName());
                         break;
-                }
-
-                mAdapterAddress.setText("Read " + currentSensor().getName());
-                mLocalTimeView.setText(strVal);
-                mBluetoothLeService.close();
-            } else if (BluetoothLeService.ACTION_BROADCAST_DATA_AVAILABLE.equals(action)) {
-                Log.i(TAG, "Action Broadcast Data Available");
-
-                LocalDateTime now = LocalDateTime.now();
-                long epoch = now.atZone(ZoneId.of("UTC")).toInstant().toEpochMilli();
-                String timestamp = now.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-                double temp = intent.getDoubleExtra(BluetoothLeService.DATA_TYPE_TEMP, 0.0d);
-                double hmdt = intent.getDoubleExtra(BluetoothLeService.DATA_TYPE_HMDT, 0.0d);
-                String strVal = "{\"deviceId\":\"" + currentSensor().getName() + "\"" +
-                        ",\"timeStampEpoch\":" + epoch + "" +
-                        ",\"timeStampIso\":\"" + timestamp + "\"" +
-                        ",\"temp\":" + String.valueOf(temp) + "" +
-                        ",\"hmdt\":" + String.valueOf(hmdt) + "}";
-                Log.i(TAG, strVal);
-                mIsScanning = false;
-                awsIot.publish("device/"+currentSensor().getName()+"/devicePayload", strVal);
+                    }
+                    // Operations are queued and issued one after another by the service
+                    mBluetoothLeService.turnOnCharacteristics(sensor, HTSensor.HT_CONF);
+//                    mBluetoothLeService.turnOnCharacteristics(sensor, OpticalSensor.OPTICAL_CONF);
+                    // Wait for sensor to stabilize
+                    mBluetoothLeService.delay(sensor, SENSOR_STABILIZE_TIME);
+//                    mBluetoothLeService.readCharacteristic(sensor, OpticalSensor.OPTICAL_DATA);
+                    mBluetoothLeService.readCharacteristic(sensor, HTSensor.HT_DATA)
+                            .exceptionally(closeOnError(sensor));
+                    mAdapterAddress.setText("Reading " + sensor.getName());
+                    break;
+                case LeEvent.DATA_AVAILABLE:
+                    Log.i(TAG, "Action GATT Data Available");
+                    String strVal = "NA";
+                    switch (event.getDataType()) {
+                        case LeEvent.DATA_TYPE_LUX:
+                            strVal = String.valueOf(event.getLux()) + " [lux]";
+                            break;
+                        case LeEvent.DATA_TYPE_HMDT:
+                            strVal = String.valueOf(event.getHmdt() / 10.0d) + " [%RH]";
+                            break;
+                        case LeEvent.DATA_TYPE_TEMP:
+                        case LeEvent.DATA_TYPE_DHT:
+                            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"));
+                            double temp = event.getTemp() / 10.0d;
+                            strVal = "{\"sensor_name\":\"" + sensor.getName() + "\"" +
+                                     ",\"sensor_type\":\"temperature\"" +
+                                     ",\"timestamp\": \"" + timestamp + "\"" +
+                                     ",\"value\":\"" + String.valueOf(temp) + "\"}";
+                            Log.i(TAG, strVal);
+//                            awsIot.publish("myTopic/1", strVal);
+                            Reading reading = mPolledReadings[sensor.getIndex()];
+                            // humidity is read along with temperature by HT sensor
+                            boolean hmdt = event.getDataType() == LeEvent.DATA_TYPE_DHT;
+                            if (reading.getTimestamp() != 0) {
+                                mReadScheduler.onReading(sensor,
+                                        event.getTemp() - reading.getTemp(),
+                                        hmdt ? event.getHmdt() - reading.getHmdt() : 0);
+                            }
+                            reading.setTemp(event.getTemp());
+                            if (hmdt) {
+                                reading.setHmdt(event.getHmdt());
+                            }
+                            reading.setTimestamp(event.getTimestamp());
+                            break;
+                    }
+
+                    mRetried[sensor.getIndex()] = false;
+                    mAdapterAddress.setText("Read " + sensor.getName());
+                    mLocalTimeView.setText(strVal);
+                    mBluetoothLeService.close(sensor);
+                    break;
+                case LeEvent.NOTIFICATION_DATA_AVAILABLE:
+                    mRetried[sensor.getIndex()] = false;
+                    if (event.getDataType() == LeEvent.DATA_TYPE_DHT) {
+                        mLocalTimeView.setText(sensor.getName() + " " + event.getTemp() / 10.0d
+                                + " [C] " + event.getHmdt() / 10.0d + " [%RH]");
+                    } else if (event.getDataType() == LeEvent.DATA_TYPE_LUX) {
+                        mLocalTimeView.setText(sensor.getName() + " " + event.getLux() + " [lux]");
+                    }
+                    break;
+                case LeEvent.BROADCAST_DATA_AVAILABLE:
+                    Log.i(TAG, "Action Broadcast Data Available");
+                    mAdapterAddress.setText("Read " + sensor.getName());
+                    break;
             }
         }
     };
 
-    /**
-     * Creates filter that listens to selected set of BluetoothLeService events.
-     *
-     * @return
-     */
-    private static IntentFilter makeBluetoothLeUpdateIntentFilter() {
-
-        final IntentFilter intentFilter = new IntentFilter();
-
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_SCAN_FINISHED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(BluetoothLeService.ACTION_BROADCAST_DATA_AVAILABLE);
-
-        return intentFilter;
-    }
-
 }
@@ -0,0 +1,77 @@
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Signatures of GATT service tables, keyed by MAC address.
+ * <p>
+ * Signature is made of firmware revision of the device and hash of its service and
+ * characteristic UUIDs. Disconnected GATT client keeps its discovered services, when such
+ * client is reconnected and signature read from the device matches the stored one, service
+ * discovery is skipped.
+ * <p>
+ * Signatures are kept in memory only. Discovered services live in GATT client, that does not
+ * survive restart of the app, so after restart services are discovered anyway. Not thread
+ * safe, it is used on handler thread of {@link GattConnectionManager}.
+ */
+public class GattServiceCache {
+
+    /** Firmware Revision String of Device Information service */
+    public static final UUID FIRMWARE_REVISION =
+            UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+
+    private final Map<String, String> signatures = new HashMap<>();
+
+    /**
+     * Get stored signature of device.
+     *
+     * @param mac MAC address of device
+     * @return signature or null if device was never discovered
+     */
+    public String getSignature(String mac) {
+        return signatures.get(mac.toUpperCase());
+    }
+
+    /**
+     * Store signature of device.
+     *
+     * @param mac MAC address of device
+     * @param signature signature made by {@link #signature(byte[], List)}
+     */
+    public void putSignature(String mac, String signature) {
+        signatures.put(mac.toUpperCase(), signature);
+    }
+
+    /**
+     * Make signature of service table.
+     *
+     * @param firmware value of {@link #FIRMWARE_REVISION}, or null if device does not have it
+     * @param services discovered services
+     * @return signature
+     */
+    public static String signature(byte[] firmware, List<BluetoothGattService> services) {
+        long hash = 17;
+        if (services != null) {
+            for (BluetoothGattService service : services) {
+                hash = hash(hash, service.getUuid());
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    hash = hash(hash, characteristic.getUuid());
+                }
+            }
+        }
+        String revision = firmware != null ? new String(firmware, StandardCharsets.US_ASCII) : "";
+        return revision + "/" + Long.toHexString(hash);
+    }
+
+    private static long hash(long hash, UUID uuid) {
+        hash = 31 * hash + uuid.getMostSignificantBits();
+        return 31 * hash + uuid.getLeastSignificantBits();
+    }
+}
@@ -2,6 +2,10 @@ package com.example.androidthings.gattserver;
 
 import java.util.UUID;
 
+/**
+ * SensorTag humidity and temperature sensor, notifies temperature in bytes 0-1 and humidity
+ * in bytes 2-3 of HT_DATA.
+ */
 public class HTSensor extends Sensor {
 
     /* Humidity Temperature Sensor Service UUID */
@@ -14,12 +18,18 @@ public class HTSensor extends Sensor {
     public static UUID HT_REFRESH = UUID.fromString("f000aa23-0451-4000-b000-000000000000");
 
     public static final double temp(byte[] value) {
-        short rawTemp;
+        return temp(value, 0);
+    }
+
+    /**
+     * Temperature from data at given offset.
+     */
+    public static final double temp(byte[] value, int offset) {
+        int rawTemp;
         double temp;
 
-        rawTemp = (short) (value[1] & 0x00FF);
-        rawTemp <<= 8;
-        rawTemp = (short) (rawTemp | (value[0] & 0x00FF));
+        // unsigned 16 bit value
+        rawTemp = ((value[offset + 1] & 0xFF) << 8) | (value[offset] & 0xFF);
 
         // degrees centigrade
         temp = ((double)rawTemp / 65536)*165 - 40;
@@ -28,12 +38,19 @@ public class HTSensor extends Sensor {
     }
 
     public static final double humidity(byte[] value) {
-        short rawHmdt;
+        return humidity(value, 0);
+    }
+
+    /**
+     * Humidity from data at given offset, notification of HT_DATA has temperature in
+     * bytes 0-1 and humidity in bytes 2-3.
+     */
+    public static final double humidity(byte[] value, int offset) {
+        int rawHmdt;
         double hmdt;
 
-        rawHmdt = (short) (value[1] & 0x00FF);
-        rawHmdt <<= 8;
-        rawHmdt = (short) (rawHmdt | (value[0] & 0x00FF));
+        // unsigned 16 bit value
+        rawHmdt = ((value[offset + 1] & 0xFF) << 8) | (value[offset] & 0xFF);
 
         // relative humidity [%RH]
         rawHmdt &= ~0x0003; // remove status bits
@@ -41,4 +58,32 @@ public class HTSensor extends Sensor {
 
         return hmdt;
     }
+
+    @Override
+    public UUID[] getDataCharacteristics() {
+        return new UUID[] {HT_DATA};
+    }
+
+    @Override
+    public UUID getConfigCharacteristic() {
+        return HT_CONF;
+    }
+
+    @Override
+    public UUID getRefreshCharacteristic() {
+        return HT_REFRESH;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, Reading reading) {
+        if (length < 2) {
+            return LeEvent.DATA_TYPE_NONE;
+        }
+        reading.setTemp((int) Math.round(temp(data, offset) * 10));
+        if (length < 4) {
+            return LeEvent.DATA_TYPE_TEMP;
+        }
+        reading.setHmdt((int) Math.round(humidity(data, offset + 2) * 10));
+        return LeEvent.DATA_TYPE_DHT;
+    }
 }
@@ -0,0 +1,496 @@
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Long term history of readings of all sensors in append only files of compressed blocks,
+ * see {@link HistoryBlockWriter}. At one reading per minute a month of single sensor takes
+ * about 200 KB.
+ * <p>
+ * Blocks are appended to segment files named by archive file and sequence number, e.g.
+ * history.archive.3. When segment reaches its size next one is started, and when there are
+ * more than maximal number of segments the oldest one is deleted along with its blocks, so
+ * archive keeps recent history in bounded storage.
+ * <p>
+ * Each sensor has open block in memory, block is appended to file when it is full or its
+ * first reading is older than maximal block age. Frame of block in file:
+ * <pre>
+ * u32 length of block
+ *     block
+ * u32 CRC32 of block
+ * </pre>
+ * Time ranges and file positions of all blocks are indexed in memory when archive is opened,
+ * torn frame at end of segment is cut off. Query reads and decodes only blocks that overlap
+ * queried range.
+ * <p>
+ * Archive subscribes to {@link EventBus}. Methods are synchronized, readings may be queried
+ * from any thread.
+ */
+public class HistoryArchive implements EventBus.Subscriber {
+
+    private static final String TAG = HistoryArchive.class.getSimpleName();
+
+    /** Default time after which open block is written even if it is not full */
+    public static final long DEFAULT_MAX_BLOCK_AGE = 60 * 60 * 1000;
+
+    /** Default size of segment file */
+    public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /** Default number of segment files kept */
+    public static final int DEFAULT_MAX_SEGMENTS = 12;
+
+    private static final int FRAME_OVERHEAD = 8;
+
+    private final File file;
+
+    private final int blockSize;
+
+    private final long segmentSize;
+
+    private final int maxSegments;
+
+    /** Open segments, oldest first, blocks are appended to the last one */
+    private final List<FileChannel> segments = new ArrayList<>();
+
+    /** Sequence number of the oldest segment */
+    private int firstSegment;
+
+    /** Last segment, blocks are appended to it */
+    private FileChannel channel;
+
+    /** Size of segments before the last one */
+    private long sealedSize;
+
+    /** Open block of each sensor */
+    private final HistoryBlockWriter[] writers;
+
+    private long maxBlockAge = DEFAULT_MAX_BLOCK_AGE;
+
+    /* Index of blocks, in order of segment and position */
+    private int blockCount;
+    private int[] blockSegment = new int[64];
+    private int[] blockSensor = new int[64];
+    private long[] blockFirst = new long[64];
+    private long[] blockLast = new long[64];
+    private long[] blockPosition = new long[64];
+    private int[] blockLength = new int[64];
+
+    /** Position of next frame in the last segment */
+    private long fileSize;
+
+    private final CRC32 crc = new CRC32();
+
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(4);
+
+    /** Buffer of block read from file */
+    private final ByteBuffer readBuffer;
+
+    private final HistoryBlockReader reader = new HistoryBlockReader();
+
+    private final Reading reading = new Reading();
+
+    /**
+     * Open archive with default segment size and number of segments.
+     *
+     * @param file archive file
+     * @param sensorCount number of sensors, at most 256
+     * @param blockSize size of block, see {@link HistoryBlockWriter#DEFAULT_BLOCK_SIZE}
+     * @throws IOException if segment can not be opened or read
+     */
+    public HistoryArchive(File file, int sensorCount, int blockSize) throws IOException {
+        this(file, sensorCount, blockSize, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Open archive, its first segment is created if it does not exist.
+     *
+     * @param file archive file, segment files are named by it
+     * @param sensorCount number of sensors, at most 256
+     * @param blockSize size of block, see {@link HistoryBlockWriter#DEFAULT_BLOCK_SIZE}
+     * @param segmentSize size of segment file, at least one block
+     * @param maxSegments number of segment files kept, at least one
+     * @throws IOException if segment can not be opened or read
+     */
+    public HistoryArchive(File file, int sensorCount, int blockSize, long segmentSize,
+                          int maxSegments) throws IOException {
+        if (sensorCount > 0x100) {
+            throw new IllegalArgumentException("Too many sensors: " + sensorCount);
+        }
+        if (segmentSize < blockSize + FRAME_OVERHEAD || maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid segments: " + maxSegments + " of "
+                    + segmentSize + " bytes");
+        }
+        this.file = file;
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.readBuffer = ByteBuffer.allocate(blockSize + FRAME_OVERHEAD);
+        this.writers = new HistoryBlockWriter[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            writers[i] = new HistoryBlockWriter(blockSize);
+            writers[i].begin(i);
+        }
+        openSegments();
+        Log.i(TAG, "Archive opened, " + segments.size() + " segments, " + blockCount
+                + " blocks, " + getSize() + " bytes.");
+    }
+
+    private File segmentFile(int number) {
+        return new File(file.getPath() + "." + number);
+    }
+
+    /**
+     * Open and index existing segments. Only the newest run of consecutive segments is kept,
+     * older ones are deleted.
+     */
+    private void openSegments() throws IOException {
+        String prefix = file.getName() + ".";
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File segment : files) {
+                String name = segment.getName();
+                if (name.startsWith(prefix)) {
+                    try {
+                        numbers.add(Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        if (numbers.isEmpty()) {
+            // archive of single file becomes the first segment
+            if (file.exists() && !file.renameTo(segmentFile(0))) {
+                throw new IOException("Unable to rename " + file);
+            }
+            numbers.add(0);
+        }
+        Collections.sort(numbers);
+        int first = numbers.size() - 1;
+        while (first > 0 && numbers.get(first - 1) == numbers.get(first) - 1) {
+            first--;
+        }
+        for (int i = 0; i < first; i++) {
+            Log.w(TAG, "Segment " + numbers.get(i) + " is not consecutive, deleted.");
+            segmentFile(numbers.get(i)).delete();
+        }
+        firstSegment = numbers.get(first);
+        for (int i = first; i < numbers.size(); i++) {
+            if (channel != null) {
+                sealedSize += fileSize;
+            }
+            channel = new RandomAccessFile(segmentFile(numbers.get(i)), "rw").getChannel();
+            segments.add(channel);
+            scan(numbers.get(i));
+        }
+        while (segments.size() > maxSegments) {
+            dropSegment();
+        }
+    }
+
+    /**
+     * Build index of blocks of segment just opened, it is called for every segment on open.
+     * Segment is cut off at its first invalid frame, torn frame is expected at end of the
+     * newest segment only, but older ones are cut the same way.
+     *
+     * @param segment sequence number of segment, its channel is {@link #channel}
+     */
+    private void scan(int segment) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        byte[] block = readBuffer.array();
+        while (position + FRAME_OVERHEAD + HistoryBlockWriter.HEADER_SIZE <= size) {
+            frameHeader.clear();
+            channel.read(frameHeader, position);
+            int length = frameHeader.getInt(0);
+            if (length < HistoryBlockWriter.HEADER_SIZE || length > blockSize
+                    || position + FRAME_OVERHEAD + length > size) {
+                break;
+            }
+            readBuffer.clear();
+            readBuffer.limit(length + 4);
+            channel.read(readBuffer, position + 4);
+            crc.reset();
+            crc.update(block, 0, length);
+            if ((int) crc.getValue() != readBuffer.getInt(length)) {
+                break;
+            }
+            int sensorIndex = HistoryBlockReader.sensorIndex(block, 0);
+            index(segment, sensorIndex, HistoryBlockReader.firstTimestamp(block, 0),
+                    HistoryBlockReader.lastTimestamp(block, 0), position + 4, length);
+            position += FRAME_OVERHEAD + length;
+        }
+        if (position < size) {
+            Log.w(TAG, "Segment " + segment + " cut off at " + position + " of " + size
+                    + " bytes.");
+            channel.truncate(position);
+        }
+        fileSize = position;
+    }
+
+    /**
+     * Set time after which open block is written even if it is not full, it limits history
+     * lost on power failure.
+     *
+     * @param maxBlockAge time in milliseconds
+     */
+    public synchronized void setMaxBlockAge(long maxBlockAge) {
+        this.maxBlockAge = maxBlockAge;
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        if (!event.isReading()) {
+            return;
+        }
+        add(event.getSensorIndex(), event.getTimestamp(), event.getTemp(), event.getHmdt());
+    }
+
+    /**
+     * Append reading to open block of sensor. Readings of sensor have to be added in order of
+     * time.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public synchronized void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (sensorIndex < 0 || sensorIndex >= writers.length) {
+            return;
+        }
+        HistoryBlockWriter writer = writers[sensorIndex];
+        if (writer.getCount() > 0 && (timestamp < writer.getLastTimestamp()
+                || timestamp - writer.getFirstTimestamp() >= maxBlockAge)) {
+            seal(writer);
+        }
+        if (!writer.add(timestamp, temp, hmdt)) {
+            seal(writer);
+            writer.add(timestamp, temp, hmdt);
+        }
+    }
+
+    /**
+     * Write open blocks of all sensors to file and force it to storage.
+     */
+    public synchronized void flush() {
+        for (HistoryBlockWriter writer : writers) {
+            if (writer.getCount() > 0) {
+                seal(writer);
+            }
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to force archive", e);
+        }
+    }
+
+    /**
+     * Close archive, open blocks are written first.
+     */
+    public synchronized void close() {
+        flush();
+        for (FileChannel segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close archive", e);
+            }
+        }
+    }
+
+    /**
+     * Copy readings of sensor from time range, oldest first. Readings in open block are
+     * included.
+     *
+     * @param sensorIndex index of sensor
+     * @param from start of range, inclusive, milliseconds since epoch
+     * @param to end of range, exclusive, milliseconds since epoch
+     * @param outTimestamps array for timestamps
+     * @param outTemp array for temperatures, in tenths
+     * @param outHmdt array for humidities, in tenths
+     * @return number of copied readings, at most length of output arrays
+     */
+    public synchronized int copy(int sensorIndex, long from, long to, long[] outTimestamps,
+                                 int[] outTemp, int[] outHmdt) {
+        int count = 0;
+        byte[] block = readBuffer.array();
+        for (int i = 0; i < blockCount && count < outTimestamps.length; i++) {
+            if (blockSensor[i] != sensorIndex || blockLast[i] < from || blockFirst[i] >= to) {
+                continue;
+            }
+            try {
+                readBuffer.clear();
+                readBuffer.limit(blockLength[i]);
+                segments.get(blockSegment[i] - firstSegment).read(readBuffer, blockPosition[i]);
+                reader.reset(block, 0, blockLength[i]);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Unable to read block " + i, e);
+                continue;
+            }
+            count = copy(from, to, outTimestamps, outTemp, outHmdt, count);
+        }
+        if (sensorIndex >= 0 && sensorIndex < writers.length) {
+            HistoryBlockWriter writer = writers[sensorIndex];
+            if (writer.getCount() > 0 && writer.getLastTimestamp() >= from
+                    && writer.getFirstTimestamp() < to) {
+                writer.end();
+                reader.reset(writer.buffer(), 0, writer.size());
+                count = copy(from, to, outTimestamps, outTemp, outHmdt, count);
+            }
+        }
+        return count;
+    }
+
+    private int copy(long from, long to, long[] outTimestamps, int[] outTemp, int[] outHmdt,
+                     int count) {
+        while (count < outTimestamps.length && reader.next(reading)) {
+            long timestamp = reading.getTimestamp();
+            if (timestamp >= to) {
+                break;
+            }
+            if (timestamp >= from) {
+                outTimestamps[count] = timestamp;
+                outTemp[count] = reading.getTemp();
+                outHmdt[count] = reading.getHmdt();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of blocks in segments.
+     *
+     * @return number of blocks
+     */
+    public synchronized int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Size of all segments.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return sealedSize + fileSize;
+    }
+
+    /**
+     * Append open block to the last segment and start new one. Next segment is started first
+     * if the block does not fit.
+     */
+    private void seal(HistoryBlockWriter writer) {
+        writer.end();
+        int length = writer.size();
+        if (fileSize > 0 && fileSize + FRAME_OVERHEAD + length > segmentSize) {
+            try {
+                nextSegment();
+            } catch (IOException e) {
+                // block is appended to full segment
+                Log.e(TAG, "Unable to start next segment", e);
+            }
+        }
+        crc.reset();
+        crc.update(writer.buffer(), 0, length);
+        ByteBuffer frame = readBuffer;
+        frame.clear();
+        frame.putInt(length);
+        frame.put(writer.buffer(), 0, length);
+        frame.putInt((int) crc.getValue());
+        frame.flip();
+        try {
+            long position = fileSize;
+            while (frame.hasRemaining()) {
+                position += channel.write(frame, position);
+            }
+            index(firstSegment + segments.size() - 1, writer.getSensorIndex(),
+                    writer.getFirstTimestamp(), writer.getLastTimestamp(), fileSize + 4, length);
+            fileSize = position;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write block of sensor " + writer.getSensorIndex(), e);
+        }
+        writer.begin(writer.getSensorIndex());
+    }
+
+    /**
+     * Force the last segment to storage and start next one, the oldest segments above the
+     * limit are deleted.
+     */
+    private void nextSegment() throws IOException {
+        channel.force(false);
+        FileChannel next = new RandomAccessFile(segmentFile(firstSegment + segments.size()),
+                "rw").getChannel();
+        segments.add(next);
+        channel = next;
+        sealedSize += fileSize;
+        fileSize = 0;
+        while (segments.size() > maxSegments) {
+            dropSegment();
+        }
+    }
+
+    /**
+     * Delete the oldest segment and remove its blocks from index.
+     */
+    private void dropSegment() {
+        File segment = segmentFile(firstSegment);
+        sealedSize -= segment.length();
+        try {
+            segments.remove(0).close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close segment " + firstSegment, e);
+        }
+        if (!segment.delete()) {
+            Log.w(TAG, "Unable to delete segment " + firstSegment);
+        }
+        // blocks of the oldest segment are at start of index
+        int dropped = 0;
+        while (dropped < blockCount && blockSegment[dropped] == firstSegment) {
+            dropped++;
+        }
+        blockCount -= dropped;
+        System.arraycopy(blockSegment, dropped, blockSegment, 0, blockCount);
+        System.arraycopy(blockSensor, dropped, blockSensor, 0, blockCount);
+        System.arraycopy(blockFirst, dropped, blockFirst, 0, blockCount);
+        System.arraycopy(blockLast, dropped, blockLast, 0, blockCount);
+        System.arraycopy(blockPosition, dropped, blockPosition, 0, blockCount);
+        System.arraycopy(blockLength, dropped, blockLength, 0, blockCount);
+        Log.i(TAG, "Segment " + firstSegment + " dropped with " + dropped + " blocks.");
+        firstSegment++;
+    }
+
+    private void index(int segment, int sensorIndex, long first, long last, long position,
+                       int length) {
+        if (blockCount == blockSensor.length) {
+            int capacity = blockCount * 2;
+            blockSegment = Arrays.copyOf(blockSegment, capacity);
+            blockSensor = Arrays.copyOf(blockSensor, capacity);
+            blockFirst = Arrays.copyOf(blockFirst, capacity);
+            blockLast = Arrays.copyOf(blockLast, capacity);
+            blockPosition = Arrays.copyOf(blockPosition, capacity);
+            blockLength = Arrays.copyOf(blockLength, capacity);
+        }
+        blockSegment[blockCount] = segment;
+        blockSensor[blockCount] = sensorIndex;
+        blockFirst[blockCount] = first;
+        blockLast[blockCount] = last;
+        blockPosition[blockCount] = position;
+        blockLength[blockCount] = length;
+        blockCount++;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Streaming decoder of blocks written by {@link HistoryBlockWriter}. Reader is reused for many
+ * blocks and does not allocate.
+ *
+ * <pre>
+ * reader.reset(block, 0, length);
+ * while (reader.next(reading)) {
+ *     reading.getTimestamp(); reading.getTemp(); reading.getHmdt();
+ * }
+ * </pre>
+ */
+public class HistoryBlockReader {
+
+    private byte[] block;
+
+    private int position;
+
+    private int end;
+
+    private int count;
+
+    private int index;
+
+    private long timestamp;
+
+    private long delta;
+
+    private int temp;
+
+    private int hmdt;
+
+    /**
+     * Start decoding block.
+     *
+     * @param block buffer with block
+     * @param offset start of block in buffer
+     * @param length length of block
+     * @throws IllegalArgumentException if block is malformed or of unknown version
+     */
+    public void reset(byte[] block, int offset, int length) {
+        if (length < HistoryBlockWriter.HEADER_SIZE || offset + length > block.length) {
+            throw new IllegalArgumentException("Block too short: " + length);
+        }
+        if ((block[offset] & 0xFF) != HistoryBlockWriter.VERSION) {
+            throw new IllegalArgumentException("Unknown block version: " + block[offset]);
+        }
+        this.block = block;
+        this.end = offset + length;
+        this.count = count(block, offset);
+        this.position = offset + HistoryBlockWriter.HEADER_SIZE;
+        this.index = 0;
+        this.timestamp = firstTimestamp(block, offset);
+        this.delta = 0;
+    }
+
+    /**
+     * Decode next reading.
+     *
+     * @param out reading to fill
+     * @return false if there are no more readings
+     * @throws IllegalArgumentException if block is truncated
+     */
+    public boolean next(Reading out) {
+        if (index == count) {
+            return false;
+        }
+        if (index == 0) {
+            temp = (int) unzigzag(getVarint());
+            hmdt = (int) unzigzag(getVarint());
+        } else {
+            delta += unzigzag(getVarint());
+            timestamp += delta;
+            temp += (int) unzigzag(getVarint());
+            hmdt += (int) unzigzag(getVarint());
+        }
+        index++;
+        out.setTimestamp(timestamp);
+        out.setTemp(temp);
+        out.setHmdt(hmdt);
+        return true;
+    }
+
+    /**
+     * Number of readings in block being decoded.
+     *
+     * @return number of readings
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sensor index from block header.
+     */
+    public static int sensorIndex(byte[] block, int offset) {
+        return block[offset + 1] & 0xFF;
+    }
+
+    /**
+     * Number of readings from block header.
+     */
+    public static int count(byte[] block, int offset) {
+        return ((block[offset + 2] & 0xFF) << 8) | (block[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Timestamp of first reading from block header.
+     */
+    public static long firstTimestamp(byte[] block, int offset) {
+        return getLong(block, offset + 4);
+    }
+
+    /**
+     * Timestamp of last reading from block header.
+     */
+    public static long lastTimestamp(byte[] block, int offset) {
+        return getLong(block, offset + 12);
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end) {
+                throw new IllegalArgumentException("Block truncated at reading " + index);
+            }
+            byte b = block[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at reading " + index);
+    }
+
+    private static long getLong(byte[] block, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (block[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Compressed block of readings of single sensor, for long term history on local flash.
+ * Timestamps are stored as delta of delta, which is zero for readings taken at regular
+ * period, temperature and humidity as delta to previous reading, which is zero or small for
+ * readings in tenths. All of them are zigzag encoded variable length integers, so typical
+ * reading takes three to five bytes instead of sixteen.
+ *
+ * <pre>
+ * header   u8  version (1)
+ *          u8  sensor index
+ *          u16 number of readings
+ *          s64 timestamp of first reading, milliseconds since epoch
+ *          s64 timestamp of last reading, milliseconds since epoch
+ * first    varint temperature, varint humidity
+ * reading  varint time delta of delta (time delta for second reading),
+ *          varint temperature delta, varint humidity delta
+ * </pre>
+ * Header has time range of block, so blocks outside of queried range are skipped without
+ * decoding. Multi byte header fields are big endian, varints are little endian base 128.
+ * Blocks are decoded by {@link HistoryBlockReader}.
+ *
+ * Writer is not thread safe.
+ */
+public class HistoryBlockWriter {
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 20;
+
+    /** Largest encoded reading, 64 bit and two 32 bit varints */
+    static final int MAX_READING_SIZE = 10 + 5 + 5;
+
+    /** Default size of block */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int MAX_COUNT = 0xFFFF;
+
+    private final byte[] buffer;
+
+    private int size;
+
+    private int count;
+
+    private int sensorIndex;
+
+    private long firstTimestamp;
+
+    private long lastTimestamp;
+
+    private long lastDelta;
+
+    private int lastTemp;
+
+    private int lastHmdt;
+
+    /**
+     * @param blockSize maximal size of block in bytes
+     */
+    public HistoryBlockWriter(int blockSize) {
+        if (blockSize < HEADER_SIZE + MAX_READING_SIZE) {
+            throw new IllegalArgumentException("Block too small: " + blockSize);
+        }
+        buffer = new byte[blockSize];
+    }
+
+    /**
+     * Start new block, previous content is discarded.
+     *
+     * @param sensorIndex index of sensor, at most 255
+     */
+    public void begin(int sensorIndex) {
+        this.sensorIndex = sensorIndex;
+        size = HEADER_SIZE;
+        count = 0;
+        buffer[0] = VERSION;
+        buffer[1] = (byte) sensorIndex;
+    }
+
+    /**
+     * Add reading to block, readings have to be added in order of time.
+     *
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     * @return false if block is full, reading is not added
+     */
+    public boolean add(long timestamp, int temp, int hmdt) {
+        if (count == MAX_COUNT || size + MAX_READING_SIZE > buffer.length) {
+            return false;
+        }
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            lastDelta = 0;
+            putVarint(zigzag(temp));
+            putVarint(zigzag(hmdt));
+        } else {
+            long delta = timestamp - lastTimestamp;
+            putVarint(zigzag(delta - lastDelta));
+            putVarint(zigzag(temp - lastTemp));
+            putVarint(zigzag(hmdt - lastHmdt));
+            lastDelta = delta;
+        }
+        lastTimestamp = timestamp;
+        lastTemp = temp;
+        lastHmdt = hmdt;
+        count++;
+        return true;
+    }
+
+    /**
+     * Finish block by writing its header, more readings may be added after this.
+     */
+    public void end() {
+        buffer[2] = (byte) (count >> 8);
+        buffer[3] = (byte) count;
+        putLong(4, count > 0 ? firstTimestamp : 0);
+        putLong(12, count > 0 ? lastTimestamp : 0);
+    }
+
+    public int getSensorIndex() {
+        return sensorIndex;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Number of bytes encoded so far.
+     *
+     * @return size of block
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Buffer with block, valid up to {@link #size()} after {@link #end()}.
+     *
+     * @return internal buffer
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    private void putLong(int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
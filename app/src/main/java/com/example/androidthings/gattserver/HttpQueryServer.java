@@ -0,0 +1,465 @@
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP server for local dashboards and controllers, answers from local storage without
+ * cloud round trip. Only GET is supported, every response except live stream closes the
+ * connection.
+ *
+ * <pre>
+ * GET /sensors                      latest reading of every sensor
+ * GET /sensors/{name}/latest        latest reading of sensor
+ * GET /sensors/{name}/history?from=&amp;to=&amp;step=
+ * GET /events                       live stream of readings, see {@link EventStream}
+ * </pre>
+ * Times are milliseconds since epoch, history defaults to last day. Range up to one day is
+ * answered with raw readings from {@link HistoryArchive}, longer range or range with step is
+ * answered with window summaries merged from precomputed {@link ReadingRollup} buckets, step
+ * is rounded up to whole buckets. Range beyond span of rollup, or giving more than 500
+ * summaries, is rejected with 400. Documents are the same as uplink payloads, see
+ * {@link PayloadWriter}. History is streamed in chunks as it is read, so response of any
+ * length needs fixed memory.
+ * <p>
+ * Server binds to loopback by default. Connections are accepted on own thread and handled by
+ * small pool, connection over the limit is refused with 503.
+ */
+public class HttpQueryServer {
+
+    private static final String TAG = HttpQueryServer.class.getSimpleName();
+
+    public static final int DEFAULT_PORT = 8080;
+
+    /** Number of connections handled at once */
+    private static final int MAX_CLIENTS = 4;
+
+    /** Time to wait for request */
+    private static final int READ_TIMEOUT = 5000;
+
+    /** Default range of history, last day */
+    private static final long DEFAULT_RANGE = 24 * 60 * 60 * 1000;
+
+    /** Longest range answered with raw readings */
+    private static final long RAW_RANGE_LIMIT = 24 * 60 * 60 * 1000;
+
+    /** Most summaries in response, range without step is split into this many */
+    private static final int MAX_POINTS = 500;
+
+    /** Number of readings read from archive at once */
+    private static final int PAGE = 512;
+
+    /** Size of chunk of streamed response */
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final List<LeSensor> sensors;
+
+    private final ReadingStore store;
+
+    private final HistoryArchive archive;
+
+    private final ReadingRollup rollup;
+
+    /** Live stream, null if not available */
+    private EventStream eventStream;
+
+    /** Sensor index by name */
+    private final Map<String, Integer> sensorIndexes = new HashMap<>();
+
+    private int port = DEFAULT_PORT;
+
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+
+    private ServerSocket serverSocket;
+
+    private ThreadPoolExecutor clients;
+
+    /**
+     * @param sensors sensors, indexed by sensor index
+     * @param store recent readings, source of latest values
+     * @param archive long term history, source of raw readings, null if there is none and
+     * only summaries are served
+     * @param rollup precomputed aggregates, source of long ranges
+     */
+    public HttpQueryServer(List<LeSensor> sensors, ReadingStore store, HistoryArchive archive,
+                           ReadingRollup rollup) {
+        this.sensors = sensors;
+        this.store = store;
+        this.archive = archive;
+        this.rollup = rollup;
+        for (LeSensor sensor : sensors) {
+            sensorIndexes.put(sensor.getName(), sensor.getIndex());
+        }
+    }
+
+    /**
+     * Set live stream served on /events.
+     *
+     * @param eventStream stream or null
+     */
+    public void setEventStream(EventStream eventStream) {
+        this.eventStream = eventStream;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Set address server listens on, applies to next start.
+     *
+     * @param bindAddress address or null to listen on all interfaces, e.g. for LAN clients
+     */
+    public void setBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Start listening.
+     *
+     * @throws IOException if server socket can not be bound
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket(port, MAX_CLIENTS, bindAddress);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CLIENTS, MAX_CLIENTS,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_CLIENTS));
+        serverSocket = socket;
+        clients = executor;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(socket, executor);
+            }
+        }, "http");
+        acceptor.start();
+        Log.i(TAG, "HTTP server listening on " + socket.getLocalSocketAddress());
+    }
+
+    /**
+     * Stop listening, connections being handled are finished.
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close server socket", e);
+        }
+        clients.shutdown();
+        serverSocket = null;
+        clients = null;
+    }
+
+    private void accept(ServerSocket socket, ThreadPoolExecutor executor) {
+        while (!socket.isClosed()) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.e(TAG, "Accept failed", e);
+                }
+                break;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    sendError(client.getOutputStream(), 503, "Service Unavailable");
+                } catch (IOException ignored) {
+                    // client is closed anyway
+                }
+                close(client);
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        boolean attached = false;
+        try {
+            client.setSoTimeout(READ_TIMEOUT);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = in.readLine();
+            String line;
+            do {
+                // headers are not needed
+                line = in.readLine();
+            } while (line != null && !line.isEmpty());
+            OutputStream out = client.getOutputStream();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                sendError(out, 400, "Bad Request");
+            } else if (!"GET".equals(parts[0])) {
+                sendError(out, 405, "Method Not Allowed");
+            } else if ("/events".equals(parts[1]) && eventStream != null) {
+                attached = eventStream.attach(client);
+                if (!attached) {
+                    sendError(out, 503, "Service Unavailable");
+                }
+            } else {
+                route(parts[1], out);
+            }
+            out.flush();
+        } catch (SocketException e) {
+            Log.d(TAG, "Client left: " + e.getMessage());
+        } catch (IOException e) {
+            Log.w(TAG, "Request failed", e);
+        } finally {
+            if (!attached) {
+                close(client);
+            }
+        }
+    }
+
+    private void route(String target, OutputStream out) throws IOException {
+        int queryStart = target.indexOf('?');
+        String path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        Map<String, String> params = parseQuery(queryStart >= 0
+                ? target.substring(queryStart + 1) : "");
+        String[] segments = path.split("/");
+        // "/sensors/name/latest" splits to "", "sensors", "name", "latest"
+        if (segments.length < 2 || !"sensors".equals(segments[1])) {
+            sendError(out, 404, "Not Found");
+            return;
+        }
+        if (segments.length == 2) {
+            sendLatest(out, -1);
+            return;
+        }
+        Integer sensorIndex = sensorIndexes.get(decode(segments[2]));
+        if (sensorIndex == null || segments.length != 4) {
+            sendError(out, 404, "Not Found");
+            return;
+        }
+        try {
+            if ("latest".equals(segments[3])) {
+                sendLatest(out, sensorIndex);
+            } else if ("history".equals(segments[3])) {
+                long to = param(params, "to", System.currentTimeMillis());
+                long from = param(params, "from", to - DEFAULT_RANGE);
+                long step = param(params, "step", 0);
+                if (from < 0 || from >= to || to - from > rollup.getSpan()
+                        || to > Long.MAX_VALUE - rollup.getSpan() || step < 0) {
+                    sendError(out, 400, "Bad Request");
+                } else if (step == 0 && to - from <= RAW_RANGE_LIMIT && archive != null) {
+                    sendReadings(out, sensorIndex, from, to);
+                } else {
+                    step = summaryStep(from, to, step);
+                    if (step == 0) {
+                        sendError(out, 400, "Bad Request");
+                    } else {
+                        sendSummaries(out, sensorIndex, from, to, step);
+                    }
+                }
+            } else {
+                sendError(out, 404, "Not Found");
+            }
+        } catch (NumberFormatException e) {
+            sendError(out, 400, "Bad Request");
+        }
+    }
+
+    /**
+     * Send latest reading of sensor, or array of latest readings of all sensors.
+     */
+    private void sendLatest(OutputStream out, int sensorIndex) throws IOException {
+        PayloadWriter writer = new PayloadWriter(sensors, 256);
+        Reading reading = new Reading();
+        if (sensorIndex >= 0) {
+            if (!store.history(sensorIndex).latest(reading)) {
+                sendError(out, 404, "Not Found");
+                return;
+            }
+            writer.reset();
+            writer.writeReading(sensorIndex, reading.getTimestamp(), reading.getTemp(),
+                    reading.getHmdt());
+        } else {
+            writer.begin();
+            for (int i = 0; i < store.getSensorCount(); i++) {
+                if (store.history(i).latest(reading)) {
+                    writer.add(i, reading.getTimestamp(), reading.getTemp(), reading.getHmdt());
+                }
+            }
+            writer.end();
+        }
+        writeHead(out, 200, "OK", "Content-Length: " + writer.size());
+        out.write(writer.buffer(), 0, writer.size());
+    }
+
+    /**
+     * Stream raw readings of sensor from archive, page by page.
+     */
+    private void sendReadings(OutputStream out, int sensorIndex, long from, long to)
+            throws IOException {
+        long[] timestamps = new long[PAGE];
+        int[] temps = new int[PAGE];
+        int[] hmdts = new int[PAGE];
+        PayloadWriter writer = new PayloadWriter(sensors, CHUNK_SIZE + 256);
+        writeHead(out, 200, "OK", "Transfer-Encoding: chunked");
+        writer.begin();
+        long start = from;
+        int count;
+        do {
+            count = archive.copy(sensorIndex, start, to, timestamps, temps, hmdts);
+            for (int i = 0; i < count; i++) {
+                writer.add(sensorIndex, timestamps[i], temps[i], hmdts[i]);
+                if (writer.size() >= CHUNK_SIZE) {
+                    writeChunk(out, writer);
+                }
+            }
+            if (count > 0) {
+                start = timestamps[count - 1] + 1;
+            }
+        } while (count == PAGE);
+        writer.end();
+        writeChunk(out, writer);
+        writeLastChunk(out);
+    }
+
+    /**
+     * Round step of summaries up to whole rollup buckets. Range is within span of rollup.
+     *
+     * @param step requested step, 0 splits range into {@link #MAX_POINTS} summaries
+     * @return step in milliseconds, or 0 if range would give more than {@link #MAX_POINTS}
+     * summaries
+     */
+    private long summaryStep(long from, long to, long step) {
+        long bucket = rollup.getBucket();
+        // summaries start at bucket boundary before from
+        long range = to - Math.floorDiv(from, bucket) * bucket;
+        if (step == 0) {
+            step = (range + MAX_POINTS - 1) / MAX_POINTS;
+        }
+        step = Math.min(step, range);
+        step = Math.max(1, (step + bucket - 1) / bucket) * bucket;
+        return (range + step - 1) / step <= MAX_POINTS ? step : 0;
+    }
+
+    /**
+     * Stream window summaries of sensor merged from rollup buckets.
+     *
+     * @param step step made by {@link #summaryStep(long, long, long)}
+     */
+    private void sendSummaries(OutputStream out, int sensorIndex, long from, long to, long step)
+            throws IOException {
+        long bucket = rollup.getBucket();
+        ReadingAggregate aggregate = new ReadingAggregate();
+        PayloadWriter writer = new PayloadWriter(sensors, CHUNK_SIZE + 512);
+        writeHead(out, 200, "OK", "Transfer-Encoding: chunked");
+        writer.begin();
+        for (long start = Math.floorDiv(from, bucket) * bucket; start < to; start += step) {
+            if (rollup.aggregate(sensorIndex, start, start + step, aggregate) > 0) {
+                writer.writeSummary(sensorIndex, start, start + step, aggregate);
+                if (writer.size() >= CHUNK_SIZE) {
+                    writeChunk(out, writer);
+                }
+            }
+        }
+        writer.end();
+        writeChunk(out, writer);
+        writeLastChunk(out);
+    }
+
+    private static void writeHead(OutputStream out, int status, String reason, String header)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Connection: close\r\n"
+                + header + "\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void sendError(OutputStream out, int status, String reason)
+            throws IOException {
+        byte[] body = ("{\"error\":\"" + reason + "\"}").getBytes(StandardCharsets.US_ASCII);
+        writeHead(out, status, reason, "Content-Length: " + body.length);
+        out.write(body);
+    }
+
+    /**
+     * Write encoded bytes as chunk, writer continues with empty buffer.
+     */
+    private static void writeChunk(OutputStream out, PayloadWriter writer) throws IOException {
+        if (writer.size() == 0) {
+            return;
+        }
+        out.write(Integer.toHexString(writer.size()).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(writer.buffer(), 0, writer.size());
+        out.write(CRLF);
+        writer.discardBuffer();
+    }
+
+    private static void writeLastChunk(OutputStream out) throws IOException {
+        out.write('0');
+        out.write(CRLF);
+        out.write(CRLF);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(decode(pair.substring(0, separator)),
+                        decode(pair.substring(separator + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static long param(Map<String, String> params, String name, long defaultValue) {
+        String value = params.get(name);
+        return value != null && !value.isEmpty() ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Event published by {@link BluetoothLeService} on {@link EventBus}. Events are mutable and
+ * reused, subscriber has to copy values it wants to keep after
+ * {@link EventBus.Subscriber#onEvent(LeEvent)} returns.
+ */
+public class LeEvent {
+
+    /* Event types */
+    public static final int GATT_CONNECTED = 1;
+    public static final int GATT_DISCONNECTED = 2;
+    public static final int SCAN_FINISHED = 3;
+    public static final int GATT_SERVICES_DISCOVERED = 4;
+    /** Data read from characteristic of GATT sensor */
+    public static final int DATA_AVAILABLE = 5;
+    /** Data read from manufacturer broadcast data of BLE sensor */
+    public static final int BROADCAST_DATA_AVAILABLE = 6;
+    /** Data notified by streaming GATT sensor */
+    public static final int NOTIFICATION_DATA_AVAILABLE = 7;
+
+    /* Data types, which values of event are valid */
+    public static final int DATA_TYPE_NONE = 0;
+    public static final int DATA_TYPE_TEMP = 1;
+    public static final int DATA_TYPE_HMDT = 2;
+    public static final int DATA_TYPE_LUX = 3;
+    /** Temperature and humidity */
+    public static final int DATA_TYPE_DHT = 4;
+    /** Data of unknown characteristic, values are not valid */
+    public static final int DATA_TYPE_UNKNOWN = 5;
+
+    private int type;
+
+    /** Index of sensor or -1 if event is not related to known sensor */
+    private int sensorIndex;
+
+    /** Time of event, milliseconds since epoch */
+    private long timestamp;
+
+    private int dataType;
+
+    /** Temperature in tenths of degree centigrade */
+    private int temp;
+
+    /** Relative humidity in tenths of %RH */
+    private int hmdt;
+
+    /** Illuminance in lux */
+    private int lux;
+
+    /**
+     * Set all fields of event.
+     */
+    void set(int type, int sensorIndex, long timestamp, int dataType, int temp, int hmdt, int lux) {
+        this.type = type;
+        this.sensorIndex = sensorIndex;
+        this.timestamp = timestamp;
+        this.dataType = dataType;
+        this.temp = temp;
+        this.hmdt = hmdt;
+        this.lux = lux;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getSensorIndex() {
+        return sensorIndex;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    public int getTemp() {
+        return temp;
+    }
+
+    public int getHmdt() {
+        return hmdt;
+    }
+
+    public int getLux() {
+        return lux;
+    }
+
+    /**
+     * Is event a full reading of sensor, temperature and humidity, that is kept in history and
+     * published. Every consumer of readings checks this, so none of them misses a source.
+     *
+     * @return true if event is a reading
+     */
+    public boolean isReading() {
+        return type == BROADCAST_DATA_AVAILABLE
+                || ((type == NOTIFICATION_DATA_AVAILABLE || type == DATA_AVAILABLE)
+                && dataType == DATA_TYPE_DHT);
+    }
+}
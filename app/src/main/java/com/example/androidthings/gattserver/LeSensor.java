@@ -2,13 +2,65 @@ package com.example.androidthings.gattserver;
 
 public class LeSensor {
 
+    /** Sensor broadcasting its data in advertisement, e.g. DHT22 beacon */
+    public static final int TYPE_BROADCAST = 0;
+    /** Sensor read over GATT connection, e.g. TI SensorTag */
+    public static final int TYPE_GATT = 1;
+
+    /** Default read period in milliseconds */
+    public static final long DEFAULT_PERIOD = 60000;
+
+    /** Temperature change in tenths of degree that shortens read period */
+    public static final int FAST_TEMP_CHANGE = 5;
+
+    /** Humidity change in tenths of %RH that shortens read period */
+    public static final int FAST_HMDT_CHANGE = 20;
+
     private String name;
 
     private String mac;
 
+    /** MAC address packed into 48 bits, see {@link MacIndex#pack(String)} */
+    private long macAddress;
+
+    /** How data is read from sensor, {@link #TYPE_BROADCAST} or {@link #TYPE_GATT} */
+    private int type;
+
+    /** Position of sensor in sensor list, used as key for per sensor data */
+    private int index = -1;
+
+    /** Time of last accepted reading, {@link android.os.SystemClock#elapsedRealtime()} based */
+    private long lastReadTime;
+
+    /** Configured read period in milliseconds */
+    private long period = DEFAULT_PERIOD;
+
+    /** Shortest period the read period may be shortened to when readings change fast */
+    private long minPeriod = DEFAULT_PERIOD;
+
+    /** Current read period, between minPeriod and period */
+    private long currentPeriod = DEFAULT_PERIOD;
+
+    /** Sensors with higher priority are read first when deadlines are equal */
+    private int priority;
+
+    /**
+     * Deadline of next reading, {@link android.os.SystemClock#elapsedRealtime()} based.
+     * Written on scan callback thread for broadcast sensors.
+     */
+    private volatile long nextReadTime;
+
+    /** Last reading, reused for every new measurement */
+    private final Reading reading = new Reading();
+
     public LeSensor(String name, String mac) {
+        this(name, mac, TYPE_BROADCAST);
+    }
+
+    public LeSensor(String name, String mac, int type) {
         this.name = name;
-        this.mac = mac;
+        this.type = type;
+        setMac(mac);
     }
 
     public String getName() {
@@ -25,5 +77,129 @@ public class LeSensor {
 
     public void setMac(String mac) {
         this.mac = mac;
+        this.macAddress = MacIndex.pack(mac);
+    }
+
+    public long getMacAddress() {
+        return macAddress;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Set read period, also resets current period and disables adaptation, set
+     * {@link #setMinPeriod(long)} afterwards to enable it.
+     *
+     * @param period read period in milliseconds
+     */
+    public void setPeriod(long period) {
+        this.period = period;
+        this.currentPeriod = period;
+        this.minPeriod = period;
+    }
+
+    public long getMinPeriod() {
+        return minPeriod;
+    }
+
+    /**
+     * Set shortest read period used while readings change fast, equal to period disables
+     * adaptation.
+     *
+     * @param minPeriod shortest read period in milliseconds
+     */
+    public void setMinPeriod(long minPeriod) {
+        this.minPeriod = Math.min(minPeriod, period);
+    }
+
+    public long getCurrentPeriod() {
+        return currentPeriod;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getNextReadTime() {
+        return nextReadTime;
+    }
+
+    public void setNextReadTime(long nextReadTime) {
+        this.nextReadTime = nextReadTime;
+    }
+
+    public Reading getReading() {
+        return reading;
+    }
+
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    public void setLastReadTime(long lastReadTime) {
+        this.lastReadTime = lastReadTime;
+    }
+
+    /**
+     * Check if sensor may be read again. Sensor is advertising multiple times per second, so
+     * it is seen many times in single scan session, but only one reading per period is taken.
+     *
+     * @param now current time, {@link android.os.SystemClock#elapsedRealtime()} based
+     * @return true if deadline of next reading passed
+     */
+    public boolean isReadDue(long now) {
+        return now >= nextReadTime;
+    }
+
+    /**
+     * Move deadline by one current period. Deadline is advanced from previous deadline, not
+     * from time of reading, so the schedule does not drift. Periods missed while sensor was
+     * not seen are skipped.
+     *
+     * @param now current time, {@link android.os.SystemClock#elapsedRealtime()} based
+     */
+    public void advanceDeadline(long now) {
+        long next = nextReadTime + currentPeriod;
+        if (next <= now) {
+            next += ((now - next) / currentPeriod + 1) * currentPeriod;
+        }
+        nextReadTime = next;
+    }
+
+    /**
+     * Adapt current period to rate of change of readings. Fast change halves the period down
+     * to minPeriod, slow change doubles it back up to period.
+     *
+     * @param tempChange change of temperature since previous reading, in tenths
+     * @param hmdtChange change of humidity since previous reading, in tenths
+     */
+    public void adaptPeriod(int tempChange, int hmdtChange) {
+        if (Math.abs(tempChange) >= FAST_TEMP_CHANGE || Math.abs(hmdtChange) >= FAST_HMDT_CHANGE) {
+            currentPeriod = Math.max(minPeriod, currentPeriod / 2);
+        } else {
+            currentPeriod = Math.min(period, currentPeriod * 2);
+        }
     }
 }
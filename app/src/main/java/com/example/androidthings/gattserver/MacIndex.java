@@ -0,0 +1,160 @@
+package com.example.androidthings.gattserver;
+
+import java.util.Arrays;
+
+/**
+ * Map of MAC addresses packed into 48-bit longs to int values, with open addressing and
+ * linear probing in primitive arrays.
+ * <p>
+ * Lookup by address string first checks last octet against a 256 bit set of known last octets,
+ * so most unknown devices are rejected from two characters without parsing the address.
+ * Filled once and then only read, it may be shared by threads when published safely.
+ */
+public class MacIndex {
+
+    /** Value returned for unknown address */
+    public static final int NOT_FOUND = -1;
+
+    /** Free slot, not a valid 48-bit address */
+    private static final long EMPTY = -1L;
+
+    /** Length of "AA:BB:CC:DD:EE:FF" */
+    private static final int ADDRESS_LENGTH = 17;
+
+    private final long[] keys;
+
+    private final int[] values;
+
+    private final int mask;
+
+    private final int shift;
+
+    /** Bit set of last octets of all keys */
+    private final long[] lastOctets = new long[4];
+
+    private int size;
+
+    /**
+     * Create index for given number of addresses, table is kept at most half full.
+     *
+     * @param expectedSize number of addresses
+     */
+    public MacIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Put address to index, replacing previous value of the same address.
+     *
+     * @param mac packed address, see {@link #pack(String)}
+     * @param value value, not {@link #NOT_FOUND}
+     */
+    public void put(long mac, int value) {
+        if (mac < 0 || mac > 0xFFFFFFFFFFFFL) {
+            throw new IllegalArgumentException("Invalid MAC " + mac);
+        }
+        int slot = slot(mac);
+        while (keys[slot] != EMPTY && keys[slot] != mac) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            if (size + 1 > keys.length / 2) {
+                throw new IllegalStateException("MacIndex is full");
+            }
+            size++;
+        }
+        keys[slot] = mac;
+        values[slot] = value;
+        int lastOctet = (int) (mac & 0xFF);
+        lastOctets[lastOctet >>> 6] |= 1L << lastOctet;
+    }
+
+    /**
+     * Get value of packed address.
+     *
+     * @param mac packed address
+     * @return value or {@link #NOT_FOUND}
+     */
+    public int get(long mac) {
+        int slot = slot(mac);
+        long key;
+        while ((key = keys[slot]) != EMPTY) {
+            if (key == mac) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Get value of address in "AA:BB:CC:DD:EE:FF" format, upper or lower case.
+     *
+     * @param address address as returned by {@link android.bluetooth.BluetoothDevice#getAddress()}
+     * @return value or {@link #NOT_FOUND}
+     */
+    public int get(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH) {
+            return NOT_FOUND;
+        }
+        int high = hexValue(address.charAt(15));
+        int low = hexValue(address.charAt(16));
+        if ((high | low) < 0) {
+            return NOT_FOUND;
+        }
+        int lastOctet = (high << 4) | low;
+        if ((lastOctets[lastOctet >>> 6] & (1L << lastOctet)) == 0) {
+            return NOT_FOUND;
+        }
+        long mac = pack(address);
+        return mac >= 0 ? get(mac) : NOT_FOUND;
+    }
+
+    private int slot(long mac) {
+        return (int) ((mac * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    /**
+     * Pack address in "AA:BB:CC:DD:EE:FF" format into lower 48 bits of long.
+     *
+     * @param address address, upper or lower case
+     * @return packed address or -1 if address is malformed
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i += 3) {
+            int high = hexValue(address.charAt(i));
+            int low = hexValue(address.charAt(i + 1));
+            if ((high | low) < 0 || (i + 2 < ADDRESS_LENGTH && address.charAt(i + 2) != ':')) {
+                return -1;
+            }
+            mac = (mac << 8) | (high << 4) | low;
+        }
+        return mac;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -2,6 +2,9 @@ package com.example.androidthings.gattserver;
 
 import java.util.UUID;
 
+/**
+ * SensorTag optical sensor, notifies illuminance in OPTICAL_DATA.
+ */
 public class OpticalSensor extends Sensor {
 
     /* Optical Sensor Service UUID */
@@ -14,11 +17,18 @@ public class OpticalSensor extends Sensor {
     public static UUID OPTICAL_REFRESH = UUID.fromString("f000aa73-0451-4000-b000-000000000000");
 
     public static final short lux(byte[] value) {
+        return lux(value, 0);
+    }
+
+    /**
+     * Illuminance from data at given offset.
+     */
+    public static final short lux(byte[] value, int offset) {
         short e, m, rawData;
 
-        rawData = (short) (value[1] & 0x00FF);
+        rawData = (short) (value[offset + 1] & 0x00FF);
         rawData <<= 8;
-        rawData = (short) (rawData | (value[0] & 0x00FF));
+        rawData = (short) (rawData | (value[offset] & 0x00FF));
 
         m = (short) (rawData & 0x0FFF);
         e = (short) ((rawData & 0xF000) >> 12);
@@ -27,4 +37,28 @@ public class OpticalSensor extends Sensor {
 
         return (short) (m * (0.01 * e));
     }
+
+    @Override
+    public UUID[] getDataCharacteristics() {
+        return new UUID[] {OPTICAL_DATA};
+    }
+
+    @Override
+    public UUID getConfigCharacteristic() {
+        return OPTICAL_CONF;
+    }
+
+    @Override
+    public UUID getRefreshCharacteristic() {
+        return OPTICAL_REFRESH;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, Reading reading) {
+        if (length < 2) {
+            return LeEvent.DATA_TYPE_NONE;
+        }
+        reading.setLux(lux(data, offset));
+        return LeEvent.DATA_TYPE_LUX;
+    }
 }
@@ -0,0 +1,42 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Encoder of batch of readings for uplink. Encoders reuse their buffer, batch is valid until
+ * next {@link #begin()}.
+ */
+public interface PayloadEncoder {
+
+    /**
+     * Start new batch, previous content is discarded.
+     */
+    void begin();
+
+    /**
+     * Add reading to batch.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    void add(int sensorIndex, long timestamp, int temp, int hmdt);
+
+    /**
+     * Finish batch.
+     */
+    void end();
+
+    /**
+     * Number of bytes encoded so far.
+     *
+     * @return size of payload
+     */
+    int size();
+
+    /**
+     * Copy of payload, for APIs that need exact array.
+     *
+     * @return payload
+     */
+    byte[] toByteArray();
+}
@@ -0,0 +1,307 @@
+package com.example.androidthings.gattserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes JSON payload of readings directly into reusable byte buffer, without intermediate
+ * Strings. Batch is JSON array of reading documents. Constant part of each sensor's document
+ * is encoded once, numbers and timestamps are written digit by digit.
+ *
+ * Document of single reading:
+ * <pre>
+ * {"deviceId":"DHT-1","timeStampEpoch":1540375330123,"timeStampIso":"2018-10-24T10:02:10.123","temp":21.5,"hmdt":40.0}
+ * </pre>
+ * ISO timestamp is in UTC and always has three fraction digits.
+ *
+ * Writer is not thread safe.
+ */
+public class PayloadWriter implements PayloadEncoder {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final byte[] TIMESTAMP_ISO = ascii(",\"timeStampIso\":\"");
+    private static final byte[] TEMP = ascii("\",\"temp\":");
+    private static final byte[] HMDT = ascii(",\"hmdt\":");
+    private static final byte[] WINDOW_START = ascii(",\"windowStart\":");
+    private static final byte[] COUNT = ascii(",\"count\":");
+    private static final byte[] TEMP_STATS = ascii(",\"temp\":{\"min\":");
+    private static final byte[] HMDT_STATS = ascii(",\"hmdt\":{\"min\":");
+    private static final byte[] MAX = ascii(",\"max\":");
+    private static final byte[] MEAN = ascii(",\"mean\":");
+    private static final byte[] LAST = ascii(",\"last\":");
+
+    /** Encoded {"deviceId":"name","timeStampEpoch": of each sensor, by sensor index */
+    private final byte[][] sensorPrefixes;
+
+    private byte[] buffer;
+
+    private int size;
+
+    /** Number of readings in current batch */
+    private int count;
+
+    /** Digits of number being written, in reverse order */
+    private final byte[] digits = new byte[20];
+
+    /** Day for which date part is cached, days since epoch */
+    private long cachedDay = Long.MIN_VALUE;
+
+    /** Cached date part, yyyy-MM-ddT */
+    private final byte[] cachedDate = new byte[11];
+
+    /**
+     * @param sensors sensors, indexed by sensor index
+     * @param initialCapacity initial size of buffer
+     */
+    public PayloadWriter(List<LeSensor> sensors, int initialCapacity) {
+        sensorPrefixes = new byte[sensors.size()][];
+        for (int i = 0; i < sensorPrefixes.length; i++) {
+            sensorPrefixes[i] = ascii("{\"deviceId\":\"" + sensors.get(i).getName()
+                    + "\",\"timeStampEpoch\":");
+        }
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Clear buffer.
+     */
+    public void reset() {
+        size = 0;
+        count = 0;
+    }
+
+    /**
+     * Discard bytes encoded so far, e.g. after they were streamed, current batch continues.
+     */
+    public void discardBuffer() {
+        size = 0;
+    }
+
+    @Override
+    public void begin() {
+        reset();
+        writeByte('[');
+    }
+
+    @Override
+    public void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (count++ > 0) {
+            writeByte(',');
+        }
+        writeReading(sensorIndex, timestamp, temp, hmdt);
+    }
+
+    @Override
+    public void end() {
+        writeByte(']');
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Buffer with payload, valid up to {@link #size()}.
+     *
+     * @return internal buffer
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Write single ASCII character.
+     *
+     * @param c character
+     */
+    public void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) c;
+    }
+
+    /**
+     * Write JSON document of one reading.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void writeReading(int sensorIndex, long timestamp, int temp, int hmdt) {
+        write(sensorPrefixes[sensorIndex]);
+        writeLong(timestamp);
+        write(TIMESTAMP_ISO);
+        writeIsoTimestamp(timestamp);
+        write(TEMP);
+        writeTenths(temp);
+        write(HMDT);
+        writeTenths(hmdt);
+        writeByte('}');
+    }
+
+    /**
+     * Write JSON document of window summary, timestamp of document is end of window.
+     * <pre>
+     * {"deviceId":"DHT-1","timeStampEpoch":1540375500000,"windowStart":1540375200000,"count":5,"temp":{"min":21.4,"max":21.6,"mean":21.5,"last":21.6},"hmdt":{"min":40.0,"max":40.3,"mean":40.1,"last":40.3}}
+     * </pre>
+     *
+     * @param sensorIndex index of sensor
+     * @param windowStart start of window, inclusive, milliseconds since epoch
+     * @param windowEnd end of window, exclusive, milliseconds since epoch
+     * @param aggregate readings in window
+     */
+    public void writeSummary(int sensorIndex, long windowStart, long windowEnd,
+                             ReadingAggregate aggregate) {
+        if (count++ > 0) {
+            writeByte(',');
+        }
+        write(sensorPrefixes[sensorIndex]);
+        writeLong(windowEnd);
+        write(WINDOW_START);
+        writeLong(windowStart);
+        write(COUNT);
+        writeLong(aggregate.getCount());
+        write(TEMP_STATS);
+        writeTenths(aggregate.getTempMin());
+        write(MAX);
+        writeTenths(aggregate.getTempMax());
+        write(MEAN);
+        writeTenths((int) Math.round(aggregate.getTempMean()));
+        write(LAST);
+        writeTenths(aggregate.getLastTemp());
+        writeByte('}');
+        write(HMDT_STATS);
+        writeTenths(aggregate.getHmdtMin());
+        write(MAX);
+        writeTenths(aggregate.getHmdtMax());
+        write(MEAN);
+        writeTenths((int) Math.round(aggregate.getHmdtMean()));
+        write(LAST);
+        writeTenths(aggregate.getLastHmdt());
+        writeByte('}');
+        writeByte('}');
+    }
+
+    /**
+     * Write decimal number.
+     *
+     * @param value number
+     */
+    public void writeLong(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+        } else {
+            // work with negative numbers, so Long.MIN_VALUE does not overflow
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            buffer[size++] = digits[--count];
+        }
+    }
+
+    /**
+     * Write fixed point number with one decimal, 215 is written as 21.5, 210 as 21.0.
+     *
+     * @param tenths value in tenths
+     */
+    public void writeTenths(int tenths) {
+        long value = tenths;
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        writeLong(value / 10);
+        ensureCapacity(2);
+        buffer[size++] = '.';
+        buffer[size++] = (byte) ('0' + value % 10);
+    }
+
+    /**
+     * Write ISO local date time in UTC, yyyy-MM-ddTHH:mm:ss.SSS.
+     *
+     * @param epochMillis milliseconds since epoch
+     */
+    public void writeIsoTimestamp(long epochMillis) {
+        long day = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(epochMillis, MILLIS_PER_DAY);
+        if (day != cachedDay) {
+            cacheDate(day);
+        }
+        write(cachedDate);
+
+        ensureCapacity(12);
+        int seconds = millisOfDay / 1000;
+        writeTwoDigits(seconds / 3600);
+        buffer[size++] = ':';
+        writeTwoDigits((seconds / 60) % 60);
+        buffer[size++] = ':';
+        writeTwoDigits(seconds % 60);
+        buffer[size++] = '.';
+        int millis = millisOfDay % 1000;
+        buffer[size++] = (byte) ('0' + millis / 100);
+        writeTwoDigits(millis % 100);
+    }
+
+    /**
+     * Encode date part of day, days since epoch, see {@link CivilDate}.
+     */
+    private void cacheDate(long day) {
+        int date = CivilDate.fromEpochDay(day);
+        int year = CivilDate.year(date);
+        int month = CivilDate.month(date);
+        int dayOfMonth = CivilDate.dayOfMonth(date);
+
+        cachedDate[0] = (byte) ('0' + (year / 1000) % 10);
+        cachedDate[1] = (byte) ('0' + (year / 100) % 10);
+        cachedDate[2] = (byte) ('0' + (year / 10) % 10);
+        cachedDate[3] = (byte) ('0' + year % 10);
+        cachedDate[4] = '-';
+        cachedDate[5] = (byte) ('0' + month / 10);
+        cachedDate[6] = (byte) ('0' + month % 10);
+        cachedDate[7] = '-';
+        cachedDate[8] = (byte) ('0' + dayOfMonth / 10);
+        cachedDate[9] = (byte) ('0' + dayOfMonth % 10);
+        cachedDate[10] = 'T';
+        cachedDay = day;
+    }
+
+    private void writeTwoDigits(int value) {
+        buffer[size++] = (byte) ('0' + value / 10);
+        buffer[size++] = (byte) ('0' + value % 10);
+    }
+
+    /**
+     * Write bytes, e.g. constant part of document encoded up front.
+     *
+     * @param bytes ASCII bytes
+     */
+    public void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
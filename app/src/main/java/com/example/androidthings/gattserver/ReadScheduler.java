@@ -0,0 +1,164 @@
+package com.example.androidthings.gattserver;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Schedules readings of sensors by earliest deadline. Each sensor has its own period and
+ * priority, see {@link LeSensor#setPeriod(long)} and {@link LeSensor#setPriority(int)}.
+ * <p>
+ * First deadlines are staggered over the shortest period, so radio sessions of sensors with
+ * the same period do not start together. Deadlines advance from previous deadline, so
+ * schedule does not drift with handler latency.
+ * <p>
+ * GATT sensors are kept in a min-heap of deadlines and {@link Callback#onReadDue(LeSensor)}
+ * is called on handler thread when the earliest one passes. Broadcast sensors are read by
+ * continuous scan, which takes advertisement of sensor once its deadline passes, see
+ * {@link LeSensor#isReadDue(long)}.
+ */
+public class ReadScheduler {
+
+    /**
+     * Receives sensors that are due to be read.
+     */
+    public interface Callback {
+
+        void onReadDue(LeSensor sensor);
+    }
+
+    /** Earliest deadline first, higher priority first on equal deadlines */
+    private static final Comparator<LeSensor> DEADLINE_ORDER = new Comparator<LeSensor>() {
+
+        @Override
+        public int compare(LeSensor a, LeSensor b) {
+            int order = Long.compare(a.getNextReadTime(), b.getNextReadTime());
+            return order != 0 ? order : Integer.compare(b.getPriority(), a.getPriority());
+        }
+    };
+
+    private final List<LeSensor> sensors;
+
+    private final Handler handler;
+
+    private final Callback callback;
+
+    private final PriorityQueue<LeSensor> queue;
+
+    private boolean started;
+
+    public ReadScheduler(List<LeSensor> sensors, Handler handler, Callback callback) {
+        this.sensors = sensors;
+        this.handler = handler;
+        this.callback = callback;
+        this.queue = new PriorityQueue<>(Math.max(1, sensors.size()), DEADLINE_ORDER);
+    }
+
+    /**
+     * Set first deadlines of all sensors and start dispatching GATT sensors. Sensors are
+     * staggered in order of priority, the first one is due immediately.
+     */
+    public void start() {
+        stop();
+        long now = SystemClock.elapsedRealtime();
+        long minPeriod = Long.MAX_VALUE;
+        for (LeSensor sensor : sensors) {
+            minPeriod = Math.min(minPeriod, sensor.getPeriod());
+        }
+
+        PriorityQueue<LeSensor> byPriority = new PriorityQueue<>(Math.max(1, sensors.size()),
+                new Comparator<LeSensor>() {
+
+                    @Override
+                    public int compare(LeSensor a, LeSensor b) {
+                        return Integer.compare(b.getPriority(), a.getPriority());
+                    }
+                });
+        byPriority.addAll(sensors);
+        int slot = 0;
+        while (!byPriority.isEmpty()) {
+            LeSensor sensor = byPriority.poll();
+            sensor.setNextReadTime(now + slot * minPeriod / sensors.size());
+            slot++;
+            if (sensor.getType() == LeSensor.TYPE_GATT) {
+                queue.add(sensor);
+            }
+        }
+        started = true;
+        schedule();
+    }
+
+    /**
+     * Stop dispatching GATT sensors.
+     */
+    public void stop() {
+        started = false;
+        handler.removeCallbacks(mDispatcher);
+        queue.clear();
+    }
+
+    /**
+     * Request sensor to be read as soon as possible, e.g. after its connection was lost.
+     *
+     * @param sensor scheduled GATT sensor
+     */
+    public void expedite(LeSensor sensor) {
+        if (started && queue.remove(sensor)) {
+            sensor.setNextReadTime(SystemClock.elapsedRealtime());
+            queue.add(sensor);
+            schedule();
+        }
+    }
+
+    /**
+     * Take reading of GATT sensor into account, its period adapts to change since previous
+     * reading. Deadline already moved is updated with the new period.
+     *
+     * @param sensor scheduled GATT sensor
+     * @param tempChange change of temperature since previous reading, in tenths
+     * @param hmdtChange change of humidity since previous reading, in tenths
+     */
+    public void onReading(LeSensor sensor, int tempChange, int hmdtChange) {
+        long period = sensor.getCurrentPeriod();
+        sensor.adaptPeriod(tempChange, hmdtChange);
+        if (started && sensor.getCurrentPeriod() != period && queue.remove(sensor)) {
+            sensor.setNextReadTime(sensor.getNextReadTime() - period
+                    + sensor.getCurrentPeriod());
+            queue.add(sensor);
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(mDispatcher);
+        LeSensor first = queue.peek();
+        if (started && first != null) {
+            long delay = first.getNextReadTime() - SystemClock.elapsedRealtime();
+            handler.postDelayed(mDispatcher, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Dispatches all sensors whose deadline passed, earliest first, and moves their
+     * deadlines.
+     */
+    private final Runnable mDispatcher = new Runnable() {
+
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            LeSensor sensor = queue.peek();
+            while (sensor != null && sensor.isReadDue(now)) {
+                queue.poll();
+                sensor.advanceDeadline(now);
+                queue.add(sensor);
+                callback.onReadDue(sensor);
+                sensor = queue.peek();
+            }
+            schedule();
+        }
+    };
+}
@@ -0,0 +1,72 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Single sensor reading held in primitive fields. Each sensor owns one reading that is
+ * overwritten by every new measurement, so decoding does not allocate.
+ *
+ * Temperature and humidity are kept in tenths, as they are sent by DHT22.
+ */
+public class Reading {
+
+    /** Time of measurement, milliseconds since epoch */
+    private long timestamp;
+
+    /** Temperature in tenths of degree centigrade */
+    private int temp;
+
+    /** Relative humidity in tenths of %RH */
+    private int hmdt;
+
+    /** Illuminance in lux */
+    private int lux;
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public int getTemp() {
+        return temp;
+    }
+
+    public void setTemp(int temp) {
+        this.temp = temp;
+    }
+
+    public int getHmdt() {
+        return hmdt;
+    }
+
+    public void setHmdt(int hmdt) {
+        this.hmdt = hmdt;
+    }
+
+    public int getLux() {
+        return lux;
+    }
+
+    public void setLux(int lux) {
+        this.lux = lux;
+    }
+
+    /**
+     * Temperature in degrees centigrade.
+     *
+     * @return temperature
+     */
+    public double getTempCelsius() {
+        return temp / 10.0d;
+    }
+
+    /**
+     * Relative humidity in %RH.
+     *
+     * @return humidity
+     */
+    public double getHmdtPercent() {
+        return hmdt / 10.0d;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Aggregate of multiple readings. Values are in tenths, as in {@link Reading}.
+ */
+public class ReadingAggregate {
+
+    private int count;
+
+    private long firstTimestamp;
+
+    private long lastTimestamp;
+
+    private int tempMin;
+
+    private int tempMax;
+
+    private long tempSum;
+
+    private int hmdtMin;
+
+    private int hmdtMax;
+
+    private long hmdtSum;
+
+    /** Values of reading with latest timestamp */
+    private int lastTemp;
+
+    private int lastHmdt;
+
+    public ReadingAggregate() {
+        reset();
+    }
+
+    /**
+     * Clear aggregate.
+     */
+    public void reset() {
+        count = 0;
+        firstTimestamp = Long.MAX_VALUE;
+        lastTimestamp = Long.MIN_VALUE;
+        tempMin = Integer.MAX_VALUE;
+        tempMax = Integer.MIN_VALUE;
+        tempSum = 0;
+        hmdtMin = Integer.MAX_VALUE;
+        hmdtMax = Integer.MIN_VALUE;
+        hmdtSum = 0;
+        lastTemp = 0;
+        lastHmdt = 0;
+    }
+
+    /**
+     * Add reading to aggregate, readings may be added in any order.
+     *
+     * @param timestamp time of measurement
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void add(long timestamp, int temp, int hmdt) {
+        count++;
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        if (timestamp >= lastTimestamp) {
+            lastTimestamp = timestamp;
+            lastTemp = temp;
+            lastHmdt = hmdt;
+        }
+        tempMin = Math.min(tempMin, temp);
+        tempMax = Math.max(tempMax, temp);
+        tempSum += temp;
+        hmdtMin = Math.min(hmdtMin, hmdt);
+        hmdtMax = Math.max(hmdtMax, hmdt);
+        hmdtSum += hmdt;
+    }
+
+    /**
+     * Add all readings of other aggregate.
+     *
+     * @param other aggregate to add
+     */
+    public void merge(ReadingAggregate other) {
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+        if (other.lastTimestamp >= lastTimestamp) {
+            lastTimestamp = other.lastTimestamp;
+            lastTemp = other.lastTemp;
+            lastHmdt = other.lastHmdt;
+        }
+        tempMin = Math.min(tempMin, other.tempMin);
+        tempMax = Math.max(tempMax, other.tempMax);
+        tempSum += other.tempSum;
+        hmdtMin = Math.min(hmdtMin, other.hmdtMin);
+        hmdtMax = Math.max(hmdtMax, other.hmdtMax);
+        hmdtSum += other.hmdtSum;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public int getTempMin() {
+        return tempMin;
+    }
+
+    public int getTempMax() {
+        return tempMax;
+    }
+
+    /**
+     * Mean temperature.
+     *
+     * @return mean temperature in tenths of degree or 0 if aggregate is empty
+     */
+    public double getTempMean() {
+        return count == 0 ? 0 : (double) tempSum / count;
+    }
+
+    /**
+     * Temperature of reading with latest timestamp.
+     *
+     * @return temperature in tenths of degree or 0 if aggregate is empty
+     */
+    public int getLastTemp() {
+        return lastTemp;
+    }
+
+    public int getHmdtMin() {
+        return hmdtMin;
+    }
+
+    public int getHmdtMax() {
+        return hmdtMax;
+    }
+
+    /**
+     * Mean humidity.
+     *
+     * @return mean humidity in tenths of %RH or 0 if aggregate is empty
+     */
+    public double getHmdtMean() {
+        return count == 0 ? 0 : (double) hmdtSum / count;
+    }
+
+    /**
+     * Relative humidity of reading with latest timestamp.
+     *
+     * @return humidity in tenths of %RH or 0 if aggregate is empty
+     */
+    public int getLastHmdt() {
+        return lastHmdt;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size history of readings of single sensor.
+ *
+ * Readings are kept in ring of primitive slots, timestamp in one array and temperature and
+ * humidity packed into the other, so nothing is boxed and memory does not grow. History has
+ * single writer (thread that decodes sensor data) and any number of readers, none of them
+ * takes a lock. Writer publishes new slot by incrementing head, readers validate after copying
+ * that the slots they read were not overwritten meanwhile.
+ */
+public class ReadingHistory {
+
+    private final int capacity;
+
+    private final int mask;
+
+    /** Time of measurement, milliseconds since epoch */
+    private final AtomicLongArray timestamps;
+
+    /** Temperature in upper and humidity in lower 32 bits, both in tenths */
+    private final AtomicLongArray values;
+
+    /** Number of readings ever written */
+    private volatile long head;
+
+    /**
+     * @param capacity number of slots, has to be power of two
+     */
+    public ReadingHistory(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity has to be power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.timestamps = new AtomicLongArray(capacity);
+        this.values = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Append reading, oldest reading is overwritten when history is full. Only one thread
+     * may write to history.
+     *
+     * @param timestamp time of measurement, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void add(long timestamp, int temp, int hmdt) {
+        long h = head;
+        int slot = (int) (h & mask);
+        timestamps.set(slot, timestamp);
+        values.set(slot, pack(temp, hmdt));
+        head = h + 1;
+    }
+
+    /**
+     * Append reading.
+     *
+     * @param reading reading to append
+     */
+    public void add(Reading reading) {
+        add(reading.getTimestamp(), reading.getTemp(), reading.getHmdt());
+    }
+
+    /**
+     * Number of readings that can be read, slot that is being overwritten is not counted.
+     *
+     * @return number of readings in history
+     */
+    public int size() {
+        return (int) Math.min(head, capacity - 1);
+    }
+
+    /**
+     * Number of readings ever written to history.
+     *
+     * @return total number of readings
+     */
+    public long getTotalCount() {
+        return head;
+    }
+
+    /**
+     * Copy last reading.
+     *
+     * @param out reading to fill
+     * @return false if history is empty
+     */
+    public boolean latest(Reading out) {
+        while (true) {
+            long h = head;
+            if (h == 0) {
+                return false;
+            }
+            int slot = (int) ((h - 1) & mask);
+            long timestamp = timestamps.get(slot);
+            long value = values.get(slot);
+            if (isValid(h - 1)) {
+                out.setTimestamp(timestamp);
+                out.setTemp(unpackTemp(value));
+                out.setHmdt(unpackHmdt(value));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copy readings from time range, oldest first.
+     *
+     * @param from start of range, inclusive, milliseconds since epoch
+     * @param to end of range, exclusive, milliseconds since epoch
+     * @param outTimestamps array for timestamps
+     * @param outTemp array for temperatures, in tenths
+     * @param outHmdt array for humidities, in tenths
+     * @return number of copied readings, at most length of output arrays
+     */
+    public int copy(long from, long to, long[] outTimestamps, int[] outTemp, int[] outHmdt) {
+        long h = head;
+        long first = Math.max(0, h - (capacity - 1));
+        int count = 0;
+        for (long i = first; i < h && count < outTimestamps.length; i++) {
+            int slot = (int) (i & mask);
+            long timestamp = timestamps.get(slot);
+            long value = values.get(slot);
+            if (!isValid(i)) {
+                // overwritten while reading, newer readings are still valid
+                count = 0;
+                continue;
+            }
+            if (timestamp >= from && timestamp < to) {
+                outTimestamps[count] = timestamp;
+                outTemp[count] = unpackTemp(value);
+                outHmdt[count] = unpackHmdt(value);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Aggregate readings from time range.
+     *
+     * @param from start of range, inclusive, milliseconds since epoch
+     * @param to end of range, exclusive, milliseconds since epoch
+     * @param out aggregate to fill, it is reset first
+     * @return number of aggregated readings
+     */
+    public int aggregate(long from, long to, ReadingAggregate out) {
+        out.reset();
+        long h = head;
+        long first = Math.max(0, h - (capacity - 1));
+        // newest first, so readings that are overwritten while aggregating are at the end
+        for (long i = h - 1; i >= first; i--) {
+            int slot = (int) (i & mask);
+            long timestamp = timestamps.get(slot);
+            long value = values.get(slot);
+            if (!isValid(i) || timestamp < from) {
+                break;
+            }
+            if (timestamp < to) {
+                out.add(timestamp, unpackTemp(value), unpackHmdt(value));
+            }
+        }
+
+        return out.getCount();
+    }
+
+    /**
+     * Check that reading with given sequence number was not overwritten. Slot that writer is
+     * writing to is not valid, so readers never see half written reading.
+     */
+    private boolean isValid(long sequence) {
+        return sequence > head - capacity;
+    }
+
+    private static long pack(int temp, int hmdt) {
+        return ((long) temp << 32) | (hmdt & 0xFFFFFFFFL);
+    }
+
+    private static int unpackTemp(long value) {
+        return (int) (value >> 32);
+    }
+
+    private static int unpackHmdt(long value) {
+        return (int) value;
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Durable append only journal of readings on local flash, used as store and forward queue for
+ * uplink. File is memory mapped and has fixed layout, header with write and acknowledge
+ * sequence followed by ring of fixed size records. Every reading is appended, records are
+ * acknowledged after cloud confirmed them, unacknowledged records survive restart. When
+ * journal is full oldest unacknowledged records are overwritten.
+ *
+ * Journal is not thread safe, it has to be used from single thread.
+ */
+public class ReadingJournal {
+
+    private static final String TAG = ReadingJournal.class.getSimpleName();
+
+    /** Default number of records, 2 MB of flash */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int MAGIC = 0x54484a31; // "THJ1"
+
+    private static final int VERSION = 1;
+
+    /* Header layout */
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_WRITE_SEQ = 16;
+    private static final int OFFSET_ACK_SEQ = 24;
+
+    /* Record layout */
+    private static final int RECORD_SIZE = 32;
+    private static final int RECORD_SEQ = 0;
+    private static final int RECORD_TIMESTAMP = 8;
+    private static final int RECORD_SENSOR = 16;
+    private static final int RECORD_TEMP = 20;
+    private static final int RECORD_HMDT = 24;
+    private static final int RECORD_CHECK = 28;
+
+    private final int capacity;
+
+    private final MappedByteBuffer buffer;
+
+    /** Sequence of next record to write */
+    private long writeSeq;
+
+    /** Sequence of oldest unacknowledged record */
+    private long ackSeq;
+
+    /** Number of records overwritten before they were acknowledged */
+    private long lostCount;
+
+    /**
+     * Open journal file, it is created if it does not exist.
+     *
+     * @param file journal file
+     * @param capacity number of records
+     * @throws IOException if file can not be mapped
+     */
+    public ReadingJournal(File file, int capacity) throws IOException {
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // mapping stays valid after channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        if (buffer.getInt(OFFSET_MAGIC) == MAGIC && buffer.getInt(OFFSET_VERSION) == VERSION
+                && buffer.getInt(OFFSET_CAPACITY) == capacity) {
+            writeSeq = buffer.getLong(OFFSET_WRITE_SEQ);
+            ackSeq = buffer.getLong(OFFSET_ACK_SEQ);
+            recover();
+            Log.i(TAG, "Journal opened, " + pending() + " unacknowledged readings.");
+        } else {
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_CAPACITY, capacity);
+            writeSeq = 0;
+            ackSeq = 0;
+            writeHeader();
+            Log.i(TAG, "Journal created, capacity " + capacity + " readings.");
+        }
+    }
+
+    /**
+     * Header is written after each record, but only forced to flash periodically. Records that
+     * were written after last header update are found by their sequence and check.
+     */
+    private void recover() {
+        long recovered = 0;
+        while (isValid(writeSeq)) {
+            writeSeq++;
+            recovered++;
+        }
+        if (writeSeq - ackSeq > capacity) {
+            ackSeq = writeSeq - capacity;
+        }
+        if (recovered > 0) {
+            Log.w(TAG, "Recovered " + recovered + " readings after header.");
+            writeHeader();
+        }
+    }
+
+    /**
+     * Append reading.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void append(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (writeSeq - ackSeq >= capacity) {
+            ackSeq++;
+            lostCount++;
+        }
+        int offset = offset(writeSeq);
+        buffer.putLong(offset + RECORD_SEQ, writeSeq);
+        buffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+        buffer.putInt(offset + RECORD_SENSOR, sensorIndex);
+        buffer.putInt(offset + RECORD_TEMP, temp);
+        buffer.putInt(offset + RECORD_HMDT, hmdt);
+        buffer.putInt(offset + RECORD_CHECK, check(writeSeq, timestamp, sensorIndex, temp, hmdt));
+        writeSeq++;
+        writeHeader();
+    }
+
+    /**
+     * Read record.
+     *
+     * @param seq sequence of record, between {@link #getAckSeq()} and {@link #getWriteSeq()}
+     * @param out reading to fill
+     * @return index of sensor
+     */
+    public int read(long seq, Reading out) {
+        if (seq < ackSeq || seq >= writeSeq) {
+            throw new IllegalArgumentException("Record " + seq + " not in journal.");
+        }
+        int offset = offset(seq);
+        out.setTimestamp(buffer.getLong(offset + RECORD_TIMESTAMP));
+        out.setTemp(buffer.getInt(offset + RECORD_TEMP));
+        out.setHmdt(buffer.getInt(offset + RECORD_HMDT));
+
+        return buffer.getInt(offset + RECORD_SENSOR);
+    }
+
+    /**
+     * Acknowledge all records before given sequence.
+     *
+     * @param seq sequence of first record that is still not acknowledged
+     */
+    public void ack(long seq) {
+        if (seq > ackSeq) {
+            ackSeq = Math.min(seq, writeSeq);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Force journal to flash.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Number of unacknowledged records.
+     *
+     * @return pending records
+     */
+    public int pending() {
+        return (int) (writeSeq - ackSeq);
+    }
+
+    public long getWriteSeq() {
+        return writeSeq;
+    }
+
+    public long getAckSeq() {
+        return ackSeq;
+    }
+
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    private int offset(long seq) {
+        return HEADER_SIZE + (int) (seq % capacity) * RECORD_SIZE;
+    }
+
+    private boolean isValid(long seq) {
+        int offset = offset(seq);
+        return buffer.getLong(offset + RECORD_SEQ) == seq
+                && buffer.getInt(offset + RECORD_CHECK) == check(seq,
+                buffer.getLong(offset + RECORD_TIMESTAMP), buffer.getInt(offset + RECORD_SENSOR),
+                buffer.getInt(offset + RECORD_TEMP), buffer.getInt(offset + RECORD_HMDT));
+    }
+
+    private static int check(long seq, long timestamp, int sensorIndex, int temp, int hmdt) {
+        long h = seq * 31 + timestamp;
+        h = h * 31 + sensorIndex;
+        h = h * 31 + temp;
+        h = h * 31 + hmdt;
+        return (int) (h ^ (h >>> 32)) ^ MAGIC;
+    }
+
+    private void writeHeader() {
+        buffer.putLong(OFFSET_WRITE_SEQ, writeSeq);
+        buffer.putLong(OFFSET_ACK_SEQ, ackSeq);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * Precomputed aggregates of readings in fixed time buckets, e.g. hours, per sensor. Aggregates
+ * of long time ranges are merged from buckets, without reading raw history.
+ * <p>
+ * Buckets of each sensor are kept in ring, bucket with index b (time / bucket length) is in
+ * slot b % capacity, oldest buckets are overwritten. Memory is allocated up front.
+ * <p>
+ * Rollup subscribes to {@link EventBus}. Methods are synchronized, aggregates may be queried
+ * from any thread.
+ */
+public class ReadingRollup implements EventBus.Subscriber {
+
+    /** Default length of bucket */
+    public static final long DEFAULT_BUCKET = 60 * 60 * 1000;
+
+    /** Default number of buckets per sensor, 90 days of hours */
+    public static final int DEFAULT_CAPACITY = 90 * 24;
+
+    /** Number of readings copied from archive at once */
+    private static final int LOAD_PAGE = 1024;
+
+    private final long bucket;
+
+    private final int capacity;
+
+    /** Aggregates by sensor index and slot */
+    private final ReadingAggregate[][] aggregates;
+
+    /** Bucket index held in slot, by sensor index and slot */
+    private final long[][] bucketIndexes;
+
+    /**
+     * @param sensorCount number of sensors
+     * @param bucket length of bucket in milliseconds
+     * @param capacity number of buckets kept per sensor
+     */
+    public ReadingRollup(int sensorCount, long bucket, int capacity) {
+        this.bucket = bucket;
+        this.capacity = capacity;
+        aggregates = new ReadingAggregate[sensorCount][capacity];
+        bucketIndexes = new long[sensorCount][capacity];
+        for (int i = 0; i < sensorCount; i++) {
+            for (int j = 0; j < capacity; j++) {
+                aggregates[i][j] = new ReadingAggregate();
+                bucketIndexes[i][j] = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return time covered by buckets of sensor, in milliseconds
+     */
+    public long getSpan() {
+        return bucket * capacity;
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        if (!event.isReading()) {
+            return;
+        }
+        add(event.getSensorIndex(), event.getTimestamp(), event.getTemp(), event.getHmdt());
+    }
+
+    /**
+     * Add reading to its bucket. Readings older than the oldest bucket are ignored.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public synchronized void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (sensorIndex < 0 || sensorIndex >= aggregates.length) {
+            return;
+        }
+        long index = Math.floorDiv(timestamp, bucket);
+        int slot = slot(index);
+        long held = bucketIndexes[sensorIndex][slot];
+        if (held > index) {
+            return;
+        }
+        if (held != index) {
+            aggregates[sensorIndex][slot].reset();
+            bucketIndexes[sensorIndex][slot] = index;
+        }
+        aggregates[sensorIndex][slot].add(timestamp, temp, hmdt);
+    }
+
+    /**
+     * Rebuild buckets from archived history, e.g. after restart.
+     *
+     * @param archive archive of readings
+     * @param from time from which buckets are rebuilt, milliseconds since epoch
+     * @param to time up to which buckets are rebuilt, milliseconds since epoch
+     */
+    public void load(HistoryArchive archive, long from, long to) {
+        long[] timestamps = new long[LOAD_PAGE];
+        int[] temps = new int[LOAD_PAGE];
+        int[] hmdts = new int[LOAD_PAGE];
+        for (int i = 0; i < aggregates.length; i++) {
+            long start = from;
+            int count;
+            do {
+                count = archive.copy(i, start, to, timestamps, temps, hmdts);
+                for (int j = 0; j < count; j++) {
+                    add(i, timestamps[j], temps[j], hmdts[j]);
+                }
+                if (count > 0) {
+                    start = timestamps[count - 1] + 1;
+                }
+            } while (count == LOAD_PAGE);
+        }
+    }
+
+    /**
+     * Merge buckets overlapping time range. Range is extended to whole buckets.
+     *
+     * @param sensorIndex index of sensor
+     * @param from start of range, inclusive, milliseconds since epoch
+     * @param to end of range, exclusive, milliseconds since epoch
+     * @param out aggregate to fill, it is reset first
+     * @return number of aggregated readings
+     */
+    public synchronized int aggregate(int sensorIndex, long from, long to, ReadingAggregate out) {
+        out.reset();
+        if (sensorIndex < 0 || sensorIndex >= aggregates.length || to <= from) {
+            return 0;
+        }
+        long first = Math.floorDiv(from, bucket);
+        long last = Math.floorDiv(to - 1, bucket);
+        // buckets older than capacity are overwritten
+        first = Math.max(first, last - capacity + 1);
+        for (long index = first; index <= last; index++) {
+            int slot = slot(index);
+            if (bucketIndexes[sensorIndex][slot] == index) {
+                out.merge(aggregates[sensorIndex][slot]);
+            }
+        }
+        return out.getCount();
+    }
+
+    private int slot(long index) {
+        return (int) Math.floorMod(index, (long) capacity);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.androidthings.gattserver;
+
+/**
+ * In memory history of all sensors, indexed by {@link LeSensor#getIndex()}. All histories are
+ * allocated up front, so memory footprint is fixed.
+ */
+public class ReadingStore {
+
+    /** Default history length, at one reading per minute it is almost three days */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final ReadingHistory[] histories;
+
+    /**
+     * @param sensorCount number of sensors
+     * @param capacity readings kept per sensor, has to be power of two
+     */
+    public ReadingStore(int sensorCount, int capacity) {
+        histories = new ReadingHistory[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            histories[i] = new ReadingHistory(capacity);
+        }
+    }
+
+    /**
+     * Number of sensors in store.
+     *
+     * @return number of sensors
+     */
+    public int getSensorCount() {
+        return histories.length;
+    }
+
+    /**
+     * History of single sensor.
+     *
+     * @param sensorIndex index of sensor
+     * @return history of sensor
+     */
+    public ReadingHistory history(int sensorIndex) {
+        return histories[sensorIndex];
+    }
+
+    /**
+     * Append sensor's current reading to its history.
+     *
+     * @param sensor sensor that was read
+     */
+    public void add(LeSensor sensor) {
+        int index = sensor.getIndex();
+        if (index >= 0 && index < histories.length) {
+            histories[index].add(sensor.getReading());
+        }
+    }
+}
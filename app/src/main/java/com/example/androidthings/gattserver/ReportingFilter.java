@@ -0,0 +1,141 @@
+package com.example.androidthings.gattserver;
+
+import java.util.Arrays;
+
+/**
+ * Decides which readings are worth reporting to the cloud. Reading is reported when its
+ * temperature or humidity moved out of the deadband around the last reported value, or when
+ * the sensor was silent for the maximal time, so the cloud still knows it is alive.
+ * <p>
+ * Deadband of each quantity has absolute part in tenths and relative part in per mille of the
+ * last reported value, the wider one applies. Readings are compared with the last reported
+ * value, not the last received one, so slow drift is reported once it adds up.
+ * <p>
+ * State is kept per sensor index in primitive arrays. Filter is not thread safe, it has to be
+ * used on single thread.
+ */
+public class ReportingFilter {
+
+    /** Default absolute temperature deadband, in tenths of degree centigrade */
+    public static final int DEFAULT_TEMP_DEADBAND = 2;
+
+    /** Default absolute humidity deadband, in tenths of %RH */
+    public static final int DEFAULT_HMDT_DEADBAND = 10;
+
+    /** Default maximal time between reports of one sensor */
+    public static final long DEFAULT_MAX_SILENCE = 15 * 60 * 1000;
+
+    private int tempDeadband = DEFAULT_TEMP_DEADBAND;
+
+    private int hmdtDeadband = DEFAULT_HMDT_DEADBAND;
+
+    /** Relative temperature deadband in per mille, 0 disables it */
+    private int tempRelativeDeadband;
+
+    /** Relative humidity deadband in per mille, 0 disables it */
+    private int hmdtRelativeDeadband;
+
+    private long maxSilence = DEFAULT_MAX_SILENCE;
+
+    /** Last reported values, by sensor index */
+    private final int[] lastTemp;
+    private final int[] lastHmdt;
+
+    /** Timestamp of last reported reading, 0 if sensor was not reported yet */
+    private final long[] lastTime;
+
+    /* Metrics */
+    private long acceptedCount;
+    private long suppressedCount;
+
+    /**
+     * @param sensorCount number of sensors, readings of other indexes are always reported
+     */
+    public ReportingFilter(int sensorCount) {
+        lastTemp = new int[sensorCount];
+        lastHmdt = new int[sensorCount];
+        lastTime = new long[sensorCount];
+    }
+
+    /**
+     * Set absolute deadbands, reading within them from the last reported one is suppressed.
+     *
+     * @param tempDeadband temperature deadband in tenths of degree centigrade
+     * @param hmdtDeadband humidity deadband in tenths of %RH
+     */
+    public void setDeadband(int tempDeadband, int hmdtDeadband) {
+        this.tempDeadband = tempDeadband;
+        this.hmdtDeadband = hmdtDeadband;
+    }
+
+    /**
+     * Set relative deadbands, applied when they are wider than absolute ones.
+     *
+     * @param tempRelativeDeadband temperature deadband in per mille of last reported value
+     * @param hmdtRelativeDeadband humidity deadband in per mille of last reported value
+     */
+    public void setRelativeDeadband(int tempRelativeDeadband, int hmdtRelativeDeadband) {
+        this.tempRelativeDeadband = tempRelativeDeadband;
+        this.hmdtRelativeDeadband = hmdtRelativeDeadband;
+    }
+
+    /**
+     * Set maximal time between reports, reading is reported after this time even if it did
+     * not change. 0 disables the heartbeat.
+     *
+     * @param maxSilence time in milliseconds
+     */
+    public void setMaxSilence(long maxSilence) {
+        this.maxSilence = maxSilence;
+    }
+
+    /**
+     * Decide whether reading is reported, reported reading becomes new reference of its sensor.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     * @return true if reading should be reported
+     */
+    public boolean accept(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (sensorIndex < 0 || sensorIndex >= lastTime.length) {
+            acceptedCount++;
+            return true;
+        }
+        long last = lastTime[sensorIndex];
+        boolean report = last == 0
+                || (maxSilence > 0 && timestamp - last >= maxSilence)
+                || outside(temp, lastTemp[sensorIndex], tempDeadband, tempRelativeDeadband)
+                || outside(hmdt, lastHmdt[sensorIndex], hmdtDeadband, hmdtRelativeDeadband);
+        if (!report) {
+            suppressedCount++;
+            return false;
+        }
+        lastTemp[sensorIndex] = temp;
+        lastHmdt[sensorIndex] = hmdt;
+        lastTime[sensorIndex] = timestamp;
+        acceptedCount++;
+        return true;
+    }
+
+    private static boolean outside(int value, int reference, int deadband, int relative) {
+        long band = Math.max(deadband, Math.abs((long) reference) * relative / 1000);
+        return Math.abs((long) value - reference) > band;
+    }
+
+    /**
+     * Forget reported values, next reading of every sensor is reported.
+     */
+    public void reset() {
+        Arrays.fill(lastTime, 0);
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+}
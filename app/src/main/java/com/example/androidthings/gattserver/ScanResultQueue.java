@@ -0,0 +1,130 @@
+package com.example.androidthings.gattserver;
+
+import java.util.Arrays;
+
+/**
+ * Bounded queue of raw advertisements, hands scan results over from thread of scan callback
+ * to the thread that decodes them. Slots are allocated up front and records are copied into
+ * them, so queueing does not allocate.
+ * <p>
+ * Queue has single producer and single consumer thread. When it is full, the newest result is
+ * dropped and counted, sensors advertise repeatedly and are read again.
+ */
+public class ScanResultQueue {
+
+    /** Longest raw record, advertising data and scan response */
+    public static final int MAX_RECORD_LENGTH = 62;
+
+    private final int mask;
+
+    private final LeSensor[] sensors;
+
+    private final byte[][] records;
+
+    private final long[] timestampsNanos;
+
+    private final long[] nows;
+
+    private final long[] wallNows;
+
+    /** Sequence of next slot to write, written by producer only */
+    private volatile long head;
+
+    /** Sequence of next slot to read, written by consumer only */
+    private volatile long tail;
+
+    /** Number of dropped results, written by producer only */
+    private volatile long dropped;
+
+    /**
+     * @param capacity number of slots, rounded up to power of two
+     */
+    public ScanResultQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = size - 1;
+        sensors = new LeSensor[size];
+        records = new byte[size][MAX_RECORD_LENGTH];
+        timestampsNanos = new long[size];
+        nows = new long[size];
+        wallNows = new long[size];
+    }
+
+    /**
+     * Queue copy of scan result, called by producer.
+     *
+     * @param sensor sensor that sent the advertisement
+     * @param record raw advertising data, as returned by ScanRecord.getBytes()
+     * @param timestampNanos reception time of result, elapsed realtime nanos
+     * @param now time of delivery, elapsed realtime
+     * @param wallNow time of delivery, milliseconds since epoch
+     * @return false if queue is full and result was dropped
+     */
+    public boolean offer(LeSensor sensor, byte[] record, long timestampNanos, long now,
+                         long wallNow) {
+        long h = head;
+        if (h - tail > mask) {
+            dropped++;
+            return false;
+        }
+        int slot = (int) h & mask;
+        int length = Math.min(record.length, MAX_RECORD_LENGTH);
+        byte[] copy = records[slot];
+        System.arraycopy(record, 0, copy, 0, length);
+        // zero length field ends parsing, stale bytes of previous record are not read
+        Arrays.fill(copy, length, MAX_RECORD_LENGTH, (byte) 0);
+        sensors[slot] = sensor;
+        timestampsNanos[slot] = timestampNanos;
+        nows[slot] = now;
+        wallNows[slot] = wallNow;
+        // publishes slot to consumer
+        head = h + 1;
+        return true;
+    }
+
+    /**
+     * @return true if there is no result to take, called by consumer
+     */
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    /*
+     * Accessors of the oldest result, called by consumer when queue is not empty.
+     */
+
+    public LeSensor peekSensor() {
+        return sensors[(int) tail & mask];
+    }
+
+    /**
+     * @return record of the oldest result, valid until {@link #remove()}
+     */
+    public byte[] peekRecord() {
+        return records[(int) tail & mask];
+    }
+
+    public long peekTimestampNanos() {
+        return timestampsNanos[(int) tail & mask];
+    }
+
+    public long peekNow() {
+        return nows[(int) tail & mask];
+    }
+
+    public long peekWallNow() {
+        return wallNows[(int) tail & mask];
+    }
+
+    /**
+     * Release the oldest result, its slot may be reused by producer.
+     */
+    public void remove() {
+        long t = tail;
+        sensors[(int) t & mask] = null;
+        tail = t + 1;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
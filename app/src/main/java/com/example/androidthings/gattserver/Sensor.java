@@ -2,8 +2,84 @@ package com.example.androidthings.gattserver;
 
 import java.util.UUID;
 
+/**
+ * Codec of sensor type. Sensor type declares characteristics or manufacturer data it sends
+ * readings in and decodes them in place into {@link Reading}, see {@link SensorRegistry}.
+ */
 public abstract class Sensor {
 
     /* Optical Sensor Service UUID */
     public static UUID SENSOR_NOTIFICATION = UUID.fromString("f000aa70-2902-4000-b000-000000000000");
+
+    /** Shortest refresh period of SensorTag sensors in milliseconds */
+    public static final long MIN_REFRESH_PERIOD = 100;
+
+    /** Longest refresh period of SensorTag sensors in milliseconds */
+    public static final long MAX_REFRESH_PERIOD = 2550;
+
+    /** Company identifier of sensor that does not advertise manufacturer data */
+    public static final int NO_MANUFACTURER = -1;
+
+    private static final UUID[] NO_CHARACTERISTICS = new UUID[0];
+
+    /**
+     * Value of refresh period characteristic, period is set in units of 10 ms.
+     *
+     * @param period period in milliseconds, clamped to supported range
+     * @return value to write to refresh period characteristic
+     */
+    public static byte[] refreshPeriod(long period) {
+        long clamped = Math.max(MIN_REFRESH_PERIOD, Math.min(MAX_REFRESH_PERIOD, period));
+        return new byte[]{(byte) (clamped / 10)};
+    }
+
+    /**
+     * Characteristics with readings of sensor, read or notified.
+     */
+    public UUID[] getDataCharacteristics() {
+        return NO_CHARACTERISTICS;
+    }
+
+    /**
+     * Characteristic that turns measurement on, null if sensor measures all the time.
+     */
+    public UUID getConfigCharacteristic() {
+        return null;
+    }
+
+    /**
+     * Characteristic of refresh period, see {@link #refreshPeriod(long)}, null if period is
+     * fixed.
+     */
+    public UUID getRefreshCharacteristic() {
+        return null;
+    }
+
+    /**
+     * Company identifier of advertised manufacturer data with readings of sensor.
+     *
+     * @return company identifier or {@link #NO_MANUFACTURER}
+     */
+    public int getManufacturerId() {
+        return NO_MANUFACTURER;
+    }
+
+    /**
+     * Length of advertised manufacturer data, without company identifier.
+     */
+    public int getManufacturerDataLength() {
+        return 0;
+    }
+
+    /**
+     * Decode data in place into reading. Reading is changed only if data is valid.
+     *
+     * @param data buffer with data
+     * @param offset offset of data in buffer
+     * @param length length of data
+     * @param reading reading to fill, timestamp is not changed
+     * @return type of decoded data, e.g. {@link LeEvent#DATA_TYPE_DHT} for temperature and
+     * humidity, {@link LeEvent#DATA_TYPE_NONE} if data is not valid
+     */
+    public abstract int decode(byte[] data, int offset, int length, Reading reading);
 }
@@ -0,0 +1,141 @@
+package com.example.androidthings.gattserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sensor types known to the gateway, see {@link Sensor}. Data is dispatched to codec of its
+ * sensor type by lookup of characteristic UUID or company identifier of manufacturer data,
+ * tables are built on registration, so number of sensor types does not add work per reading.
+ * <p>
+ * Sensor types are registered before the registry is used, lookups may then run on any
+ * thread.
+ */
+public class SensorRegistry {
+
+    private final List<Sensor> sensors = new ArrayList<>();
+
+    private final Map<UUID, Sensor> byCharacteristic = new HashMap<>();
+
+    /** Sensors by high and low byte of company identifier, pages are allocated on demand */
+    private final Sensor[][] byManufacturer = new Sensor[256][];
+
+    /**
+     * Create registry of sensor types built into the gateway.
+     */
+    public static SensorRegistry createDefault() {
+        SensorRegistry registry = new SensorRegistry();
+        registry.register(new Dht22());
+        registry.register(new HTSensor());
+        registry.register(new OpticalSensor());
+        return registry;
+    }
+
+    /**
+     * Register sensor type.
+     *
+     * @param sensor codec of sensor type
+     * @throws IllegalArgumentException if its characteristic or company identifier is taken
+     */
+    public void register(Sensor sensor) {
+        for (UUID uuid : sensor.getDataCharacteristics()) {
+            if (byCharacteristic.containsKey(uuid)) {
+                throw new IllegalArgumentException("Characteristic " + uuid + " is registered");
+            }
+        }
+        int companyId = sensor.getManufacturerId();
+        if (companyId != Sensor.NO_MANUFACTURER) {
+            if (companyId < 0 || companyId > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid company identifier " + companyId);
+            }
+            if (forManufacturer(companyId) != null) {
+                throw new IllegalArgumentException("Company " + companyId + " is registered");
+            }
+            Sensor[] page = byManufacturer[companyId >>> 8];
+            if (page == null) {
+                page = new Sensor[256];
+                byManufacturer[companyId >>> 8] = page;
+            }
+            page[companyId & 0xFF] = sensor;
+        }
+        for (UUID uuid : sensor.getDataCharacteristics()) {
+            byCharacteristic.put(uuid, sensor);
+        }
+        sensors.add(sensor);
+    }
+
+    /**
+     * @return registered sensor types
+     */
+    public List<Sensor> getSensors() {
+        return Collections.unmodifiableList(sensors);
+    }
+
+    /**
+     * Find sensor type that sends readings in characteristic.
+     *
+     * @param uuid characteristic UUID
+     * @return sensor or null
+     */
+    public Sensor forCharacteristic(UUID uuid) {
+        return byCharacteristic.get(uuid);
+    }
+
+    /**
+     * Find sensor type that advertises readings as manufacturer data of company.
+     *
+     * @param companyId Bluetooth SIG company identifier
+     * @return sensor or null
+     */
+    public Sensor forManufacturer(int companyId) {
+        Sensor[] page = byManufacturer[(companyId >>> 8) & 0xFF];
+        return page != null ? page[companyId & 0xFF] : null;
+    }
+
+    /**
+     * Decode characteristic value into reading.
+     *
+     * @param uuid characteristic UUID
+     * @param value characteristic value
+     * @param reading reading to fill, timestamp is not changed
+     * @return type of decoded data, {@link LeEvent#DATA_TYPE_UNKNOWN} if no sensor type sends
+     * the characteristic, {@link LeEvent#DATA_TYPE_NONE} if value is not valid
+     */
+    public int decodeCharacteristic(UUID uuid, byte[] value, Reading reading) {
+        Sensor sensor = byCharacteristic.get(uuid);
+        if (sensor == null) {
+            return LeEvent.DATA_TYPE_UNKNOWN;
+        }
+        if (value == null) {
+            return LeEvent.DATA_TYPE_NONE;
+        }
+        return sensor.decode(value, 0, value.length, reading);
+    }
+
+    /**
+     * Decode the first manufacturer data of registered sensor type in raw advertising data
+     * into reading, advertising data is parsed in place.
+     *
+     * @param record raw advertising data, as returned by ScanRecord.getBytes()
+     * @param reading reading to fill, timestamp is not changed
+     * @return type of decoded data, {@link LeEvent#DATA_TYPE_UNKNOWN} if there is no data of
+     * registered sensor type, {@link LeEvent#DATA_TYPE_NONE} if data is not valid
+     */
+    public int decodeAdvertisement(byte[] record, Reading reading) {
+        int offset = AdvertisingData.nextManufacturerData(record, 0);
+        while (offset >= 0) {
+            Sensor sensor = forManufacturer(AdvertisingData.companyId(record, offset));
+            int length = AdvertisingData.manufacturerDataLength(record, offset);
+            if (sensor != null && length == sensor.getManufacturerDataLength()) {
+                return sensor.decode(record, offset + 4, length, reading);
+            }
+            offset = AdvertisingData.nextManufacturerData(record,
+                    offset + AdvertisingData.fieldSize(record, offset));
+        }
+        return LeEvent.DATA_TYPE_UNKNOWN;
+    }
+}
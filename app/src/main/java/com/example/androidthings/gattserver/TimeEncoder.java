@@ -0,0 +1,158 @@
+package com.example.androidthings.gattserver;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Encoder of {@link CurrentTime} characteristics into caller provided buffers, for time served
+ * repeatedly, e.g. notified every second.
+ * <p>
+ * Offsets of time zone are looked up once and cached until the next transition of the zone,
+ * e.g. start of daylight saving time, date is computed once per day. Encoding does not
+ * allocate, except on zone transition.
+ * <p>
+ * Encoder is not thread safe, every thread needs its own.
+ */
+public class TimeEncoder {
+
+    /** Length of Current Time characteristic */
+    public static final int EXACT_TIME_LENGTH = 10;
+
+    /** Length of Local Time Information characteristic */
+    public static final int LOCAL_TIME_INFO_LENGTH = 2;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final int FIFTEEN_MINUTE_MILLIS = 900000;
+
+    private static final int HALF_HOUR_MILLIS = 1800000;
+
+    private ZoneRules rules;
+
+    /* Offsets valid from validFrom, inclusive, to validUntil, exclusive, epoch millis */
+    private long validFrom;
+    private long validUntil;
+    private long totalOffset;
+    private long standardOffset;
+    private long dstOffset;
+
+    /* Date of cached local day */
+    private long day = Long.MIN_VALUE;
+    private int year;
+    private int month;
+    private int dayOfMonth;
+    private byte dayOfWeek;
+
+    /**
+     * @param zone time zone of encoded local time
+     */
+    public TimeEncoder(ZoneId zone) {
+        setZone(zone);
+    }
+
+    /**
+     * Set time zone, e.g. after the system time zone changed.
+     *
+     * @param zone time zone of encoded local time
+     */
+    public void setZone(ZoneId zone) {
+        rules = zone.getRules();
+        validFrom = Long.MAX_VALUE;
+        validUntil = Long.MIN_VALUE;
+        day = Long.MIN_VALUE;
+    }
+
+    /**
+     * Write the field values of a Current Time characteristic.
+     *
+     * @param timestamp time, milliseconds since epoch
+     * @param adjustReason adjustment flags, see {@link CurrentTime#ADJUST_NONE}
+     * @param out buffer to write to
+     * @param offset position in buffer
+     * @return number of bytes written, {@link #EXACT_TIME_LENGTH}
+     */
+    public int writeExactTime(long timestamp, byte adjustReason, byte[] out, int offset) {
+        refresh(timestamp);
+        long local = timestamp + totalOffset;
+        long localDay = Math.floorDiv(local, DAY_MILLIS);
+        if (localDay != day) {
+            setDay(localDay);
+        }
+        int millisOfDay = (int) (local - localDay * DAY_MILLIS);
+        int seconds = millisOfDay / 1000;
+
+        // Year
+        out[offset] = (byte) (year & 0xFF);
+        out[offset + 1] = (byte) ((year >> 8) & 0xFF);
+        // Month
+        out[offset + 2] = (byte) month;
+        // Day
+        out[offset + 3] = (byte) dayOfMonth;
+        // Hours
+        out[offset + 4] = (byte) (seconds / 3600);
+        // Minutes
+        out[offset + 5] = (byte) (seconds / 60 % 60);
+        // Seconds
+        out[offset + 6] = (byte) (seconds % 60);
+        // Day of Week (1-7)
+        out[offset + 7] = dayOfWeek;
+        // Fractions256
+        out[offset + 8] = (byte) (millisOfDay % 1000 * 256 / 1000);
+
+        out[offset + 9] = adjustReason;
+        return EXACT_TIME_LENGTH;
+    }
+
+    /**
+     * Write the field values of a Local Time Information characteristic.
+     *
+     * @param timestamp time, milliseconds since epoch
+     * @param out buffer to write to
+     * @param offset position in buffer
+     * @return number of bytes written, {@link #LOCAL_TIME_INFO_LENGTH}
+     */
+    public int writeLocalTimeInfo(long timestamp, byte[] out, int offset) {
+        refresh(timestamp);
+        // Time zone, 15 minute intervals
+        out[offset] = (byte) (standardOffset / FIFTEEN_MINUTE_MILLIS);
+        // DST Offset, 30 minute intervals
+        out[offset + 1] = CurrentTime.getDstOffsetCode((int) (dstOffset / HALF_HOUR_MILLIS));
+        return LOCAL_TIME_INFO_LENGTH;
+    }
+
+    /**
+     * Look up offsets of zone, if timestamp is outside of period they are cached for.
+     */
+    private void refresh(long timestamp) {
+        if (timestamp >= validFrom && timestamp < validUntil) {
+            return;
+        }
+        Instant instant = Instant.ofEpochMilli(timestamp);
+        // transition at the timestamp itself starts the period
+        ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochMilli(
+                timestamp + 1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        validFrom = previous != null ? previous.toEpochSecond() * 1000 : Long.MIN_VALUE;
+        validUntil = next != null ? next.toEpochSecond() * 1000 : Long.MAX_VALUE;
+        totalOffset = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        standardOffset = rules.getStandardOffset(instant).getTotalSeconds() * 1000L;
+        dstOffset = rules.getDaylightSavings(instant).toMillis();
+        // local day may start at different instant now
+        day = Long.MIN_VALUE;
+    }
+
+    /**
+     * Compute date of local day, days since epoch, to proleptic Gregorian calendar.
+     */
+    private void setDay(long localDay) {
+        int date = CivilDate.fromEpochDay(localDay);
+        year = CivilDate.year(date);
+        month = CivilDate.month(date);
+        dayOfMonth = CivilDate.dayOfMonth(date);
+        // 1970-01-01 was Thursday, Monday is 1
+        dayOfWeek = (byte) (Math.floorMod(localDay + 3, 7) + 1);
+        day = localDay;
+    }
+}
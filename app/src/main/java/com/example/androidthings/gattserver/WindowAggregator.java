@@ -0,0 +1,271 @@
+package com.example.androidthings.gattserver;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Aggregates readings of each sensor over time windows and publishes only window summaries
+ * (count, min, max, mean and last value) to AWS IoT, so cloud traffic does not grow with
+ * sampling rate.
+ * <p>
+ * Windows are aligned to multiples of slide since epoch. Tumbling window has slide equal to its
+ * size. Sliding window is split into panes of slide length, each pane is aggregated
+ * incrementally and window summary is merged from its panes when the window closes. Memory is
+ * fixed, window size / slide aggregates plus panes open during grace time per sensor,
+ * independent of number of readings.
+ * <p>
+ * Windows are closed by timer after grace time, so late readings of batched scans still fall
+ * into their window. Readings of panes that are in no open window are dropped. Summaries of all
+ * sensors closed together are sent in single JSON array, see
+ * {@link PayloadWriter#writeSummary(int, long, long, ReadingAggregate)}.
+ * <p>
+ * Aggregator subscribes to {@link EventBus}, it has to be used on thread of its Handler.
+ */
+public class WindowAggregator implements EventBus.Subscriber {
+
+    private static final String TAG = WindowAggregator.class.getSimpleName();
+
+    /** Topic of window summaries */
+    public static final String SUMMARY_TOPIC = "gateway/windowSummary";
+
+    /** Default time window is kept open after its end */
+    public static final long DEFAULT_GRACE = 10000;
+
+    private final AwsIot awsIot;
+
+    private final Handler handler;
+
+    private final long windowSize;
+
+    private final long slide;
+
+    /** Number of panes in window */
+    private final int paneCount;
+
+    /** Number of pane slots, panes of window and panes open during grace time */
+    private final int slotCount;
+
+    /** Panes of each sensor, pane with index p is in slot p % slotCount */
+    private final ReadingAggregate[][] panes;
+
+    /** Oldest pane of each sensor that is not closed yet */
+    private final long[] nextClose;
+
+    /** Summary being merged */
+    private final ReadingAggregate window = new ReadingAggregate();
+
+    private final PayloadWriter payload;
+
+    private String topic = SUMMARY_TOPIC;
+
+    private final long grace;
+
+    private boolean started;
+
+    /* Metrics */
+    private long summaryCount;
+    private long lateCount;
+    private long droppedCount;
+
+    private final Runnable closer = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            long target = Math.floorDiv(now - grace, slide);
+            for (int i = 0; i < panes.length; i++) {
+                advance(i, target);
+            }
+            publish();
+            schedule(now);
+        }
+    };
+
+    /**
+     * @param awsIot AWS IoT client
+     * @param sensors sensors, indexed by sensor index
+     * @param handler handler of thread on which events are received
+     * @param windowSize length of window in milliseconds
+     * @param slide period of window summaries in milliseconds, window size has to be its
+     *              multiple, equal to window size for tumbling window
+     */
+    public WindowAggregator(AwsIot awsIot, List<LeSensor> sensors, Handler handler,
+                            long windowSize, long slide) {
+        this(awsIot, sensors, handler, windowSize, slide, DEFAULT_GRACE);
+    }
+
+    /**
+     * @param awsIot AWS IoT client
+     * @param sensors sensors, indexed by sensor index
+     * @param handler handler of thread on which events are received
+     * @param windowSize length of window in milliseconds
+     * @param slide period of window summaries in milliseconds, window size has to be its
+     *              multiple, equal to window size for tumbling window
+     * @param grace time window is kept open after its end, for readings delivered late
+     */
+    public WindowAggregator(AwsIot awsIot, List<LeSensor> sensors, Handler handler,
+                            long windowSize, long slide, long grace) {
+        if (slide <= 0 || windowSize < slide || windowSize % slide != 0) {
+            throw new IllegalArgumentException("Window " + windowSize
+                    + " is not multiple of slide " + slide);
+        }
+        this.awsIot = awsIot;
+        this.handler = handler;
+        this.windowSize = windowSize;
+        this.slide = slide;
+        this.grace = Math.max(0, grace);
+        this.paneCount = (int) (windowSize / slide);
+        this.slotCount = paneCount + (int) ((this.grace + slide - 1) / slide) + 1;
+        this.panes = new ReadingAggregate[sensors.size()][slotCount];
+        this.nextClose = new long[sensors.size()];
+        for (int i = 0; i < panes.length; i++) {
+            for (int j = 0; j < slotCount; j++) {
+                panes[i][j] = new ReadingAggregate();
+            }
+        }
+        this.payload = new PayloadWriter(sensors, BatchPublisher.DEFAULT_MAX_BYTES);
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * Start closing windows.
+     */
+    public void start() {
+        long now = System.currentTimeMillis();
+        long first = Math.floorDiv(now - grace, slide);
+        for (int i = 0; i < panes.length; i++) {
+            for (ReadingAggregate aggregate : panes[i]) {
+                aggregate.reset();
+            }
+            nextClose[i] = first;
+        }
+        started = true;
+        payload.begin();
+        schedule(now);
+    }
+
+    /**
+     * Stop closing windows, open windows are discarded.
+     */
+    public void stop() {
+        started = false;
+        handler.removeCallbacks(closer);
+    }
+
+    @Override
+    public void onEvent(LeEvent event) {
+        if (!event.isReading()) {
+            return;
+        }
+        add(event.getSensorIndex(), event.getTimestamp(), event.getTemp(), event.getHmdt());
+    }
+
+    /**
+     * Add reading to its pane.
+     *
+     * @param sensorIndex index of sensor
+     * @param timestamp time of reading, milliseconds since epoch
+     * @param temp temperature in tenths of degree centigrade
+     * @param hmdt relative humidity in tenths of %RH
+     */
+    public void add(int sensorIndex, long timestamp, int temp, int hmdt) {
+        if (!started || sensorIndex < 0 || sensorIndex >= panes.length) {
+            return;
+        }
+        long pane = Math.floorDiv(timestamp, slide);
+        // panes from oldest one of open windows to slotCount panes after it have slots
+        long oldest = nextClose[sensorIndex] - paneCount + 1;
+        if (pane < oldest) {
+            lateCount++;
+            return;
+        }
+        if (pane >= oldest + slotCount) {
+            // reading too far ahead of timer, e.g. wall clock was set forward
+            advance(sensorIndex, pane - slotCount + paneCount);
+        }
+        panes[sensorIndex][slot(pane)].add(timestamp, temp, hmdt);
+    }
+
+    /**
+     * Close panes of sensor before target pane, summary of each window ending with closed
+     * pane is written to payload.
+     */
+    private void advance(int sensorIndex, long target) {
+        long current = nextClose[sensorIndex];
+        if (target <= current) {
+            return;
+        }
+        ReadingAggregate[] sensorPanes = panes[sensorIndex];
+        // all panes with slot are closed by then, following windows are empty
+        long last = Math.min(target - 1, current + slotCount - 1);
+        for (long pane = current; pane <= last; pane++) {
+            window.reset();
+            for (int i = 0; i < paneCount; i++) {
+                window.merge(sensorPanes[slot(pane - i)]);
+            }
+            if (window.getCount() > 0) {
+                payload.writeSummary(sensorIndex, (pane + 1 - paneCount) * slide,
+                        (pane + 1) * slide, window);
+                summaryCount++;
+            }
+            // oldest pane leaves all open windows, its slot is reused by later pane
+            sensorPanes[slot(pane + 1 - paneCount)].reset();
+        }
+        if (last < target - 1) {
+            for (ReadingAggregate aggregate : sensorPanes) {
+                aggregate.reset();
+            }
+        }
+        nextClose[sensorIndex] = target;
+    }
+
+    private int slot(long pane) {
+        return (int) Math.floorMod(pane, (long) slotCount);
+    }
+
+    private void publish() {
+        if (payload.size() <= 1) {
+            return;
+        }
+        payload.end();
+        if (!awsIot.isConnected() || !awsIot.publish(topic, payload.toByteArray())) {
+            droppedCount++;
+            Log.w(TAG, "Window summaries not sent, " + droppedCount + " payloads dropped.");
+        } else {
+            Log.d(TAG, "Window summaries sent, " + payload.size() + " bytes, total "
+                    + summaryCount + " summaries, " + lateCount + " late readings.");
+        }
+        payload.begin();
+    }
+
+    /**
+     * Schedule closing of windows to next end of pane after grace time.
+     */
+    private void schedule(long now) {
+        if (!started) {
+            return;
+        }
+        long next = (Math.floorDiv(now - grace, slide) + 1) * slide + grace;
+        handler.postDelayed(closer, next - now);
+    }
+
+    public long getWindowSize() {
+        return windowSize;
+    }
+
+    public long getSlide() {
+        return slide;
+    }
+
+    public long getSummaryCount() {
+        return summaryCount;
+    }
+
+    public long getLateCount() {
+        return lateCount;
+    }
+}
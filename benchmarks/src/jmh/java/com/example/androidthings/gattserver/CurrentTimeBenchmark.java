@@ -0,0 +1,56 @@
+package com.example.androidthings.gattserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.ZoneId;
+
+/**
+ * Encoding of time characteristics, {@link CurrentTime} with Calendar against
+ * {@link TimeEncoder} into reused buffer.
+ */
+@State(Scope.Thread)
+public class CurrentTimeBenchmark {
+
+    private TimeEncoder encoder;
+
+    private byte[] buffer;
+
+    /** Time advanced by each operation, so that time fields change */
+    private long timestamp;
+
+    @Setup
+    public void setUp() {
+        encoder = new TimeEncoder(ZoneId.systemDefault());
+        buffer = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        timestamp = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public byte[] getExactTime() {
+        timestamp += 1000;
+        return CurrentTime.getExactTime(timestamp, CurrentTime.ADJUST_NONE);
+    }
+
+    @Benchmark
+    public byte[] getLocalTimeInfo() {
+        timestamp += 1000;
+        return CurrentTime.getLocalTimeInfo(timestamp);
+    }
+
+    @Benchmark
+    public byte[] encoderExactTime() {
+        timestamp += 1000;
+        encoder.writeExactTime(timestamp, CurrentTime.ADJUST_NONE, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encoderLocalTimeInfo() {
+        timestamp += 1000;
+        encoder.writeLocalTimeInfo(timestamp, buffer, 0);
+        return buffer;
+    }
+}
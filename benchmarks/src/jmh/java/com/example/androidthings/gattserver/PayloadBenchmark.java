@@ -0,0 +1,71 @@
+package com.example.androidthings.gattserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JSON payload of reading, string concatenation formerly inlined in GattServerActivity against
+ * {@link PayloadWriter} writing into reused buffer.
+ */
+@State(Scope.Thread)
+public class PayloadBenchmark {
+
+    private List<LeSensor> sensors;
+
+    private PayloadWriter writer;
+
+    private long timestamp;
+
+    private int temp;
+
+    private int hmdt;
+
+    @Setup
+    public void setUp() {
+        LeSensor sensor = new LeSensor("DHT-1", "CF:37:9A:3A:5B:01");
+        sensor.setIndex(0);
+        sensors = Collections.singletonList(sensor);
+        writer = new PayloadWriter(sensors, 256);
+        timestamp = System.currentTimeMillis();
+        temp = 225;
+        hmdt = 500;
+    }
+
+    @Benchmark
+    public byte[] stringConcat() {
+        timestamp += 1000;
+        LocalDateTime now = LocalDateTime.ofEpochSecond(timestamp / 1000,
+                (int) (timestamp % 1000) * 1000000, ZoneOffset.UTC);
+        String strVal = "{\"deviceId\":\"" + sensors.get(0).getName() + "\"" +
+                ",\"timeStampEpoch\":" + timestamp + "" +
+                ",\"timeStampIso\":\"" + now.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + "\"" +
+                ",\"temp\":" + String.valueOf(temp / 10.0d) + "" +
+                ",\"hmdt\":" + String.valueOf(hmdt / 10.0d) + "}";
+        return strVal.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int payloadWriter() {
+        timestamp += 1000;
+        writer.reset();
+        writer.writeReading(0, timestamp, temp, hmdt);
+        return writer.size();
+    }
+
+    @Benchmark
+    public byte[] payloadWriterCopy() {
+        timestamp += 1000;
+        writer.reset();
+        writer.writeReading(0, timestamp, temp, hmdt);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.androidthings.gattserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding of sensor data, legacy decoders returning doubles against decoding in place into
+ * {@link Reading} and dispatch through {@link SensorRegistry}.
+ */
+@State(Scope.Thread)
+public class SensorDecodeBenchmark {
+
+    /** DHT22 data, 50.0 %RH and 22.5 degrees */
+    private byte[] dht = {0x01, (byte) 0xF4, 0x00, (byte) 0xE1, (byte) 0xD6};
+
+    /** Advertising data with flags, other company data and DHT22 data */
+    private byte[] advertisement = {
+            0x02, 0x01, 0x06,
+            0x04, (byte) 0xFF, 0x4C, 0x00, 0x09,
+            0x08, (byte) 0xFF, 0x59, 0x00, 0x01, (byte) 0xF4, 0x00, (byte) 0xE1, (byte) 0xD6};
+
+    /** HT_DATA notification, 63.125 degrees and 60.0 %RH, both raw values above 0x7FFF */
+    private byte[] ht = {0x00, (byte) 0xA0, (byte) 0x99, (byte) 0x99};
+
+    /** OPTICAL_DATA notification */
+    private byte[] optical = {0x34, 0x52};
+
+    private SensorRegistry registry;
+
+    private Reading reading;
+
+    @Setup
+    public void setUp() {
+        registry = SensorRegistry.createDefault();
+        reading = new Reading();
+    }
+
+    @Benchmark
+    public double dht22Temp() {
+        return Dht22.temp(dht);
+    }
+
+    @Benchmark
+    public double dht22Humidity() {
+        return Dht22.humidity(dht);
+    }
+
+    @Benchmark
+    public boolean dht22ChechSum() {
+        return Dht22.chechSum(dht);
+    }
+
+    @Benchmark
+    public int dht22DecodeInPlace() {
+        Dht22.decode(dht, 0, reading);
+        return reading.getTemp() + reading.getHmdt();
+    }
+
+    @Benchmark
+    public int dht22Advertisement() {
+        registry.decodeAdvertisement(advertisement, reading);
+        return reading.getTemp() + reading.getHmdt();
+    }
+
+    @Benchmark
+    public double htSensorTemp() {
+        return HTSensor.temp(ht);
+    }
+
+    @Benchmark
+    public double htSensorHumidity() {
+        return HTSensor.humidity(ht, 2);
+    }
+
+    @Benchmark
+    public int htSensorRegistry() {
+        registry.decodeCharacteristic(HTSensor.HT_DATA, ht, reading);
+        return reading.getTemp() + reading.getHmdt();
+    }
+
+    @Benchmark
+    public short opticalSensorLux() {
+        return OpticalSensor.lux(optical);
+    }
+
+    @Benchmark
+    public int opticalSensorRegistry() {
+        registry.decodeCharacteristic(OpticalSensor.OPTICAL_DATA, optical, reading);
+        return reading.getLux();
+    }
+}
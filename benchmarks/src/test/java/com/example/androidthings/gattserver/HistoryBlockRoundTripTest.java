@@ -0,0 +1,92 @@
+package com.example.androidthings.gattserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Readings written by {@link HistoryBlockWriter} are decoded unchanged by
+ * {@link HistoryBlockReader}.
+ */
+public class HistoryBlockRoundTripTest {
+
+    @Test
+    public void regularReadings() {
+        long[] timestamps = new long[200];
+        int[] temps = new int[timestamps.length];
+        int[] hmdts = new int[timestamps.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1540375330123L + i * 60000L;
+            temps[i] = 215 + i % 3;
+            hmdts[i] = 400 - i % 5;
+        }
+        roundTrip(7, timestamps, temps, hmdts);
+    }
+
+    @Test
+    public void irregularReadings() {
+        Random random = new Random(1);
+        long[] timestamps = new long[200];
+        int[] temps = new int[timestamps.length];
+        int[] hmdts = new int[timestamps.length];
+        long timestamp = 1540375330123L;
+        for (int i = 0; i < timestamps.length; i++) {
+            // gaps of outages, equal timestamps and values of whole sensor range
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(86400000) : random.nextInt(2000);
+            timestamps[i] = timestamp;
+            temps[i] = random.nextInt(1650) - 400;
+            hmdts[i] = random.nextInt(1001);
+        }
+        roundTrip(255, timestamps, temps, hmdts);
+    }
+
+    @Test
+    public void singleReading() {
+        roundTrip(0, new long[]{-1000L}, new int[]{-400}, new int[]{0});
+    }
+
+    /**
+     * Write readings into blocks as the archive does, a new block when one is full, and
+     * check that every block decodes to the readings written into it.
+     */
+    private static void roundTrip(int sensorIndex, long[] timestamps, int[] temps,
+                                  int[] hmdts) {
+        HistoryBlockWriter writer = new HistoryBlockWriter(256);
+        writer.begin(sensorIndex);
+        int first = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (!writer.add(timestamps[i], temps[i], hmdts[i])) {
+                check(writer, first, i, timestamps, temps, hmdts);
+                writer.begin(sensorIndex);
+                assertTrue(writer.add(timestamps[i], temps[i], hmdts[i]));
+                first = i;
+            }
+        }
+        check(writer, first, timestamps.length, timestamps, temps, hmdts);
+    }
+
+    private static void check(HistoryBlockWriter writer, int from, int to, long[] timestamps,
+                              int[] temps, int[] hmdts) {
+        writer.end();
+        byte[] block = writer.buffer();
+        assertEquals(writer.getSensorIndex(), HistoryBlockReader.sensorIndex(block, 0));
+        assertEquals(to - from, HistoryBlockReader.count(block, 0));
+        assertEquals(timestamps[from], HistoryBlockReader.firstTimestamp(block, 0));
+        assertEquals(timestamps[to - 1], HistoryBlockReader.lastTimestamp(block, 0));
+
+        HistoryBlockReader reader = new HistoryBlockReader();
+        reader.reset(block, 0, writer.size());
+        Reading reading = new Reading();
+        for (int i = from; i < to; i++) {
+            assertTrue(reader.next(reading));
+            assertEquals(timestamps[i], reading.getTimestamp());
+            assertEquals(temps[i], reading.getTemp());
+            assertEquals(hmdts[i], reading.getHmdt());
+        }
+        assertFalse(reader.next(reading));
+    }
+}